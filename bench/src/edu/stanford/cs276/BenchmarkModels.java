@@ -0,0 +1,119 @@
+package edu.stanford.cs276;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.stanford.cs276.util.Dictionary;
+import edu.stanford.cs276.util.LongIntMap;
+import edu.stanford.cs276.util.Pair;
+import edu.stanford.cs276.util.Vocabulary;
+
+/**
+ * Models and inputs shared by the benchmarks of one fork. The data set is read from
+ * the directory named by the bench.data system property (default bench-data), and
+ * written there by SyntheticData first if it has no corpus. The models are built
+ * into the same directory if they are not there yet, then loaded the way
+ * runcorrector loads them, so the benchmarks measure the mapped models.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkModels {
+
+	// Candidates kept for the scoring benchmarks, from the first queries
+	private static final int MAX_CANDIDATES = 4096;
+
+	File dir;
+	String languageModelFile;
+	String noisyChannelFile;
+	LanguageModel languageModel;
+	NoisyChannelModel noisyChannelModel;
+	EmpiricalCostModel empiricalCostModel;
+	CandidateGenerator candidateGenerator;
+	CandidateEngine trie;
+	SpellingCorrector spellingCorrector;
+	// The language model's vocabulary as a heap Dictionary
+	Dictionary dictionary;
+	String[] queries;
+	// Every word of the queries, misspelled or not
+	String[] words;
+	// (candidate, typed query, edit distance) as getCandidates gives them
+	String[] candidates;
+	String[] typed;
+	int[] distances;
+
+	@Setup
+	public void setUp() throws Exception {
+		dir = new File(System.getProperty("bench.data", "bench-data"));
+		if (!new File(dir, "corpus").isDirectory()) {
+			new SyntheticData(20000, 42).write(dir, 200000, 4, 20000, 1000);
+		}
+		languageModelFile = new File(dir, Config.languageModelFile).getPath();
+		noisyChannelFile = new File(dir, Config.noisyChannelFile).getPath();
+		if (!new File(languageModelFile).exists()) {
+			Dictionary unigramCounts = new Dictionary();
+			LongIntMap bigramCounts = new LongIntMap();
+			new CorpusCounter(Runtime.getRuntime().availableProcessors()).count(
+					CorpusCounter.corpusFiles(new File(dir, "corpus").getPath()), unigramCounts,
+					bigramCounts);
+			new LanguageModel(unigramCounts, bigramCounts).save(languageModelFile);
+		}
+		if (!new File(noisyChannelFile).exists()) {
+			new NoisyChannelModel(new EmpiricalCostModel(new File(dir, "edit1s.txt").getPath()))
+					.save(noisyChannelFile);
+		}
+
+		languageModel = LanguageModel.read(languageModelFile);
+		noisyChannelModel = NoisyChannelModel.read(noisyChannelFile).withProbabilityType("empirical");
+		empiricalCostModel = noisyChannelModel.empiricalCostModel;
+		candidateGenerator = new CandidateGenerator(languageModel);
+		trie = VocabularyTrie.build(languageModel.vocabulary());
+		spellingCorrector = new SpellingCorrector(languageModel, noisyChannelModel);
+
+		Vocabulary vocab = languageModel.vocabulary();
+		dictionary = new Dictionary(vocab.size());
+		for (int id = 0; id < vocab.size(); id++) {
+			dictionary.add(vocab.term(id), vocab.count(id));
+		}
+
+		List<String> queryList = new ArrayList<String>();
+		List<String> wordList = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(new File(dir, "queries.txt")));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				queryList.add(line);
+				for (String word : line.trim().split(" ")) {
+					wordList.add(word);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		queries = queryList.toArray(new String[queryList.size()]);
+		words = wordList.toArray(new String[wordList.size()]);
+
+		List<Pair<String, Integer>> pairs = new ArrayList<Pair<String, Integer>>();
+		List<String> pairQueries = new ArrayList<String>();
+		for (int q = 0; q < queries.length && pairs.size() < MAX_CANDIDATES; q++) {
+			for (Pair<String, Integer> candidate : candidateGenerator.getCandidates(queries[q], trie)) {
+				pairs.add(candidate);
+				pairQueries.add(queries[q]);
+			}
+		}
+		int n = Math.min(pairs.size(), MAX_CANDIDATES);
+		candidates = new String[n];
+		typed = new String[n];
+		distances = new int[n];
+		for (int i = 0; i < n; i++) {
+			candidates[i] = pairs.get(i).getFirst();
+			typed[i] = pairQueries.get(i);
+			distances[i] = pairs.get(i).getSecond();
+		}
+	}
+}
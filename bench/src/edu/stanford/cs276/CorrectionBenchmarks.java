@@ -0,0 +1,90 @@
+package edu.stanford.cs276;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.cs276.util.Pair;
+
+/**
+ * Average time per call of the correction hot paths. Each call takes the next input
+ * of the synthetic data set in turn, so a run averages over many queries, words or
+ * candidates rather than repeating one. Run with -prof gc for allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CorrectionBenchmarks {
+
+	private int next;
+
+	private int next(int length) {
+		if (next >= length) {
+			next = 0;
+		}
+		return next++;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Set<Pair<String, Integer>> getCandidates(BenchmarkModels models) throws Exception {
+		return models.candidateGenerator.getCandidates(models.queries[next(models.queries.length)]);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Set<Pair<String, Integer>> getCandidatesTrie(BenchmarkModels models) throws Exception {
+		return models.candidateGenerator.getCandidates(models.queries[next(models.queries.length)],
+				models.trie);
+	}
+
+	@Benchmark
+	public double scoreCandidate(BenchmarkModels models) {
+		int i = next(models.candidates.length);
+		return models.spellingCorrector.scoreCandidate(models.candidates[i], models.typed[i],
+				models.distances[i]);
+	}
+
+	@Benchmark
+	public double queryProbability(BenchmarkModels models) {
+		return models.languageModel.queryProbability(models.candidates[next(models.candidates.length)]);
+	}
+
+	@Benchmark
+	public double editProbability(BenchmarkModels models) {
+		int i = next(models.candidates.length);
+		return models.empiricalCostModel.editProbability(models.candidates[i], models.typed[i],
+				models.distances[i]);
+	}
+
+	@Benchmark
+	public int dictionaryCount(BenchmarkModels models) {
+		return models.dictionary.count(models.words[next(models.words.length)]);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public String bestCorrection(BenchmarkModels models) {
+		return models.spellingCorrector.bestCorrection(models.queries[next(models.queries.length)]);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<Pair<String, Double>> bestCorrections(BenchmarkModels models) {
+		return models.spellingCorrector.bestCorrections(models.queries[next(models.queries.length)],
+				10);
+	}
+}
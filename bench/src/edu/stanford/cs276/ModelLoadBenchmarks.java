@@ -0,0 +1,33 @@
+package edu.stanford.cs276;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to open the saved models, as load() does on startup: mapping the model files
+ * and reading their headers, not touching every page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelLoadBenchmarks {
+
+	@Benchmark
+	public LanguageModel loadLanguageModel(BenchmarkModels models) throws Exception {
+		return LanguageModel.read(models.languageModelFile);
+	}
+
+	@Benchmark
+	public NoisyChannelModel loadNoisyChannelModel(BenchmarkModels models) throws Exception {
+		return NoisyChannelModel.read(models.noisyChannelFile);
+	}
+}
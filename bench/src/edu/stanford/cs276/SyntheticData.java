@@ -0,0 +1,152 @@
+package edu.stanford.cs276;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Writes a synthetic data set in the layout buildmodels and runcorrector expect, so
+ * the benchmarks need no outside data: a corpus directory of text files, an edit1s
+ * file of misspelled and correct query pairs, and query and gold files. Words are
+ * random strings drawn with a Zipf-like frequency; misspellings are one random
+ * insertion, deletion, substitution or transposition, and a query gets up to two.
+ * The same seed always gives the same files.
+ */
+public class SyntheticData {
+
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz";
+
+	private final Random random;
+	private final String[] words;
+
+	public SyntheticData(int vocabularySize, long seed) {
+		random = new Random(seed);
+		words = new String[vocabularySize];
+		Set<String> seen = new HashSet<String>();
+		for (int i = 0; i < vocabularySize; i++) {
+			String word;
+			do {
+				int length = 2 + random.nextInt(8);
+				StringBuilder sb = new StringBuilder();
+				for (int j = 0; j < length; j++) {
+					// Early letters are the common ones, as in real text
+					sb.append(ALPHABET.charAt((int) Math.min(25, Math.abs(random.nextGaussian() * 8))));
+				}
+				word = sb.toString();
+			} while (!seen.add(word));
+			words[i] = word;
+		}
+	}
+
+	/**
+	 * Writes dir/corpus/doc*.txt with the given number of lines spread over files,
+	 * dir/edit1s.txt with edits lines, and dir/queries.txt and dir/gold.txt.
+	 */
+	public void write(File dir, int lines, int files, int edits, int queries) throws IOException {
+		File corpus = new File(dir, "corpus");
+		if (!corpus.isDirectory() && !corpus.mkdirs()) {
+			throw new IOException("Cannot create " + corpus);
+		}
+		for (int f = 0; f < files; f++) {
+			PrintWriter out = new PrintWriter(new FileWriter(new File(corpus, "doc" + f + ".txt")));
+			try {
+				for (int l = 0; l < lines / files; l++) {
+					out.println(phrase(3 + random.nextInt(15)));
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		PrintWriter out = new PrintWriter(new FileWriter(new File(dir, "edit1s.txt")));
+		try {
+			for (int i = 0; i < edits; i++) {
+				String correct = phrase(1 + random.nextInt(4));
+				out.println(misspell(correct) + "\t" + correct);
+			}
+		} finally {
+			out.close();
+		}
+
+		PrintWriter queryOut = new PrintWriter(new FileWriter(new File(dir, "queries.txt")));
+		PrintWriter goldOut = new PrintWriter(new FileWriter(new File(dir, "gold.txt")));
+		try {
+			for (int i = 0; i < queries; i++) {
+				String correct = phrase(1 + random.nextInt(4));
+				String query = correct;
+				for (int e = random.nextInt(3); e > 0; e--) {
+					query = misspell(query);
+				}
+				queryOut.println(query);
+				goldOut.println(correct);
+			}
+		} finally {
+			queryOut.close();
+			goldOut.close();
+		}
+	}
+
+	// Index of a word, word i being about twice as frequent as word 2i
+	private int zipf() {
+		double u = random.nextDouble();
+		return (int) Math.min(words.length - 1, Math.floor(Math.pow(words.length + 1.0, u)) - 1);
+	}
+
+	private String phrase(int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int k = 0; k < length; k++) {
+			if (k > 0) {
+				sb.append(' ');
+			}
+			sb.append(words[zipf()]);
+		}
+		return sb.toString();
+	}
+
+	private String misspell(String s) {
+		StringBuilder sb = new StringBuilder(s);
+		int p = random.nextInt(sb.length());
+		char c = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+		switch (random.nextInt(4)) {
+		case 0:
+			sb.insert(p, c);
+			break;
+		case 1:
+			if (sb.length() > 1) {
+				sb.deleteCharAt(p);
+			}
+			break;
+		case 2:
+			sb.setCharAt(p, c);
+			break;
+		default:
+			if (p + 1 < sb.length()) {
+				char t = sb.charAt(p);
+				sb.setCharAt(p, sb.charAt(p + 1));
+				sb.setCharAt(p + 1, t);
+			}
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println(
+					"java edu.stanford.cs276.SyntheticData <output dir> [vocabulary size] [corpus lines]"
+					+ " [corpus files] [edit lines] [queries] [seed] \n"
+					+ "SAMPLE: java edu.stanford.cs276.SyntheticData bench-data 20000 200000 4 20000 1000 42");
+			return;
+		}
+		int vocabulary = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int lines = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+		int files = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		int edits = args.length > 4 ? Integer.parseInt(args[4]) : 20000;
+		int queries = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+		long seed = args.length > 6 ? Long.parseLong(args[6]) : 42;
+		new SyntheticData(vocabulary, seed).write(new File(args[0]), lines, files, edits, queries);
+	}
+}
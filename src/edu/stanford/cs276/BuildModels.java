@@ -1,5 +1,8 @@
 package edu.stanford.cs276;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 public class BuildModels {
 
@@ -12,26 +15,163 @@ public class BuildModels {
 		String trainingCorpus = null;
 		String editsFile = null;
 		String extra = null;
-		if (args.length == 2 || args.length == 3) {
-			trainingCorpus = args[0];
-			editsFile = args[1];
-			if (args.length == 3) extra = args[2];
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean buildIndex = false;
+		boolean update = false;
+		boolean approximate = false;
+		int sketchWidth = 1 << 22;
+		int sketchDepth = 4;
+		int minBigramCount = -1;
+		long memoryBudget = 0;
+		int quantizeBits = 0;
+		int order = 2;
+		int minTrigramCount = 1;
+		File tempDir = null;
+
+		// Options may appear anywhere; everything else is positional
+		List<String> positional = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ("--threads".equals(args[i]) && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if ("--index".equals(args[i])) {
+				buildIndex = true;
+			} else if ("--update".equals(args[i])) {
+				update = true;
+			} else if ("--approximate".equals(args[i])) {
+				approximate = true;
+			} else if ("--sketch-width".equals(args[i]) && i + 1 < args.length) {
+				sketchWidth = Integer.parseInt(args[++i]);
+			} else if ("--sketch-depth".equals(args[i]) && i + 1 < args.length) {
+				sketchDepth = Integer.parseInt(args[++i]);
+			} else if ("--min-bigram-count".equals(args[i]) && i + 1 < args.length) {
+				minBigramCount = Integer.parseInt(args[++i]);
+			} else if ("--memory-budget".equals(args[i]) && i + 1 < args.length) {
+				memoryBudget = parseSize(args[++i]);
+			} else if ("--quantize-bigrams".equals(args[i]) && i + 1 < args.length) {
+				quantizeBits = Integer.parseInt(args[++i]);
+			} else if ("--order".equals(args[i]) && i + 1 < args.length) {
+				order = Integer.parseInt(args[++i]);
+			} else if ("--min-trigram-count".equals(args[i]) && i + 1 < args.length) {
+				minTrigramCount = Integer.parseInt(args[++i]);
+			} else if ("--temp-dir".equals(args[i]) && i + 1 < args.length) {
+				tempDir = new File(args[++i]);
+			} else {
+				positional.add(args[i]);
+			}
+		}
+
+		if (positional.size() == 2 || positional.size() == 3) {
+			trainingCorpus = positional.get(0);
+			editsFile = positional.get(1);
+			if (positional.size() == 3) extra = positional.get(2);
 		} else {
 			System.err.println(
 					"Invalid arguments.  Argument count must 2 or 3" + 
 							"./buildmodels <training corpus dir> <training edit1s file> \n" + 
 							"./buildmodels <training corpus dir> <training edit1s file> <extra> \n" + 
 							"SAMPLE: ./buildmodels data/corpus data/edit1s.txt \n" +
-							"SAMPLE: ./buildmodels data/corpus data/edit1s.txt extra \n"
+							"SAMPLE: ./buildmodels data/corpus data/edit1s.txt extra \n" +
+							"Options: \n" +
+							"  --threads N   count the corpus with N threads (default: all cores) \n" +
+							"  --index       also build the symmetric delete candidate index \n" +
+							"  --update      add only the corpus files and edit lines that are new since \n" +
+							"                the saved models were built; pass --index again to rebuild \n" +
+							"                the index \n" +
+							"  --approximate counts bigrams in a Count-Min sketch first, and exactly only \n" +
+							"                those it puts at --min-bigram-count or more \n" +
+							"  --sketch-width N, --sketch-depth N \n" +
+							"                shape of that sketch (default: 4194304 by 4) \n" +
+							"  --min-bigram-count N \n" +
+							"                drop bigrams seen fewer than N times from the saved model \n" +
+							"                (default: 2 with --approximate, else 1); a pruned model \n" +
+							"                cannot be updated \n" +
+							"  --memory-budget SIZE \n" +
+							"                count bigrams in SIZE bytes of heap (e.g. 256m, 2g), \n" +
+							"                spilling sorted runs to disk and merging them into the \n" +
+							"                model, for corpora whose counts do not fit in memory \n" +
+							"  --temp-dir DIR \n" +
+							"                where to spill those runs (default: java.io.tmpdir) \n" +
+							"  --quantize-bigrams BITS \n" +
+							"                save bigram log probabilities rounded to 8 or 16 bits in \n" +
+							"                a sorted table instead of the counts; much smaller, but \n" +
+							"                the model cannot be updated \n" +
+							"  --order N     2 for a bigram model (the default), or 3 to also save \n" +
+							"                the trigram counts, by which each word after the second \n" +
+							"                is scored with stupid backoff to the bigrams; they are \n" +
+							"                counted out of core in --memory-budget (default: a \n" +
+							"                quarter of the heap), and the model cannot be updated \n" +
+							"  --min-trigram-count N \n" +
+							"                with --order 3, drop trigrams seen fewer than N times \n" +
+							"                (default: 1) \n"
 					);
 			return;
 		}
-		System.out.println("training corpus: " + args[0]);
+		if (minBigramCount < 0) {
+			minBigramCount = approximate ? 2 : 1;
+		}
+		if (update && (approximate || minBigramCount > 1)) {
+			System.err.println("--update cannot be combined with --approximate or --min-bigram-count");
+			return;
+		}
+		if (memoryBudget > 0 && (update || approximate)) {
+			System.err.println("--memory-budget cannot be combined with --update or --approximate");
+			return;
+		}
+		if (quantizeBits != 0 && quantizeBits != 8 && quantizeBits != 16) {
+			System.err.println("--quantize-bigrams takes 8 or 16");
+			return;
+		}
+		if (quantizeBits > 0 && (update || memoryBudget > 0)) {
+			System.err.println("--quantize-bigrams cannot be combined with --update or --memory-budget");
+			return;
+		}
+		if (order != 2 && order != 3) {
+			System.err.println("--order takes 2 or 3");
+			return;
+		}
+		if (order == 3 && update) {
+			System.err.println("--order 3 cannot be combined with --update");
+			return;
+		}
+		System.out.println("training corpus: " + trainingCorpus);
+
+		if (update) {
+			languageModel = LanguageModel.update(trainingCorpus, threads);
+		} else if (memoryBudget > 0) {
+			// Written as it is built, so there is nothing left to save
+			languageModel = LanguageModel.createOutOfCore(trainingCorpus, threads, memoryBudget,
+					tempDir, minBigramCount, order == 3 ? Math.max(1, minTrigramCount) : 0);
+		} else if (approximate) {
+			languageModel = LanguageModel.createApproximate(trainingCorpus, threads, sketchWidth,
+					sketchDepth, minBigramCount);
+		} else {
+			languageModel =  LanguageModel.create(trainingCorpus, threads);
+			if (minBigramCount > 1) {
+				languageModel = languageModel.withBigramsPruned(minBigramCount);
+			}
+		}
+		if (order == 3 && memoryBudget <= 0) {
+			languageModel.countTrigrams(trainingCorpus, threads,
+					Runtime.getRuntime().maxMemory() / 4, tempDir, minTrigramCount);
+		}
+		if (quantizeBits > 0) {
+			languageModel.quantizeBigrams(quantizeBits);
+		}
+		if (memoryBudget <= 0) {
+			languageModel.save();
+		}
 
-		languageModel =  LanguageModel.create(trainingCorpus);
-		languageModel.save();
+		if (buildIndex) {
+			// The index refers to word ids of the saved model, so build it from that
+			SymmetricDeleteIndex.build(LanguageModel.read(Config.languageModelFile), 2,
+					Config.candidateGenFile);
+		}
 
-		noisyChannelModel = NoisyChannelModel.create(editsFile);
+		if (update) {
+			noisyChannelModel = NoisyChannelModel.update(editsFile);
+		} else {
+			noisyChannelModel = NoisyChannelModel.create(editsFile);
+		}
 
 		// Save the models to disk
 		noisyChannelModel.save();
@@ -46,4 +186,21 @@ public class BuildModels {
 			 */	
 		}
 	}
+
+	// Parses a byte count with an optional k, m or g suffix
+	private static long parseSize(String size) {
+		String digits = size.toLowerCase();
+		int shift = 0;
+		if (digits.endsWith("k")) {
+			shift = 10;
+		} else if (digits.endsWith("m")) {
+			shift = 20;
+		} else if (digits.endsWith("g")) {
+			shift = 30;
+		}
+		if (shift > 0) {
+			digits = digits.substring(0, digits.length() - 1);
+		}
+		return Long.parseLong(digits) << shift;
+	}
 }
@@ -0,0 +1,115 @@
+package edu.stanford.cs276;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how the confidence margin of SpellingCorrector trades accuracy for speed.
+ * The saved models are loaded once, and the queries of a file are corrected on one
+ * thread with no margin, then with each margin given, comparing the corrections to
+ * a gold file. For each margin it prints the accuracy, the corrections that differ
+ * from those with no margin, the share of queries answered without their distance
+ * 2 candidates, and the throughput. A first pass with no margin only warms up.
+ */
+public class CalibrateMargin {
+
+	public static void main(String[] args) throws Exception {
+		String engineName = "brute";
+		String margins = "0,1,2,4,8,16";
+		int rounds = 1;
+		List<String> positional = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ("--engine".equals(args[i]) && i + 1 < args.length) {
+				engineName = args[++i];
+			} else if ("--margins".equals(args[i]) && i + 1 < args.length) {
+				margins = args[++i];
+			} else if ("--rounds".equals(args[i]) && i + 1 < args.length) {
+				rounds = Integer.parseInt(args[++i]);
+			} else {
+				positional.add(args[i]);
+			}
+		}
+		if (positional.size() != 3 || rounds < 1) {
+			System.err.println(
+					"Invalid arguments.  Argument count must be 3 \n" +
+					"java edu.stanford.cs276.CalibrateMargin <uniform | empirical> <query file> <gold file> \n" +
+					"Options: \n" +
+					"  --engine E    candidate engine, as for runcorrector (default: brute) \n" +
+					"  --margins L   comma-separated margins to try (default: 0,1,2,4,8,16) \n" +
+					"  --rounds N    time N passes over the queries per margin and keep the \n" +
+					"                fastest (default: 1) \n");
+			return;
+		}
+		List<String> queries = readLines(positional.get(1));
+		List<String> gold = readLines(positional.get(2));
+		if (queries.size() != gold.size()) {
+			throw new Exception("The query file has " + queries.size()
+					+ " lines but the gold file has " + gold.size());
+		}
+		if (queries.isEmpty()) {
+			throw new Exception("No queries in " + positional.get(1));
+		}
+		List<Double> tried = new ArrayList<Double>();
+		tried.add(Double.POSITIVE_INFINITY);
+		for (String margin : margins.split(",")) {
+			tried.add(Double.parseDouble(margin.trim()));
+		}
+
+		ModelHolder models = new ModelHolder(ModelSnapshot.load(positional.get(0), engineName));
+		String[] exact = correctAll(new SpellingCorrector(models, 0, null), queries);
+
+		System.out.printf("%-8s %-21s %8s %10s %10s %9s\n", "margin", "accuracy", "changed",
+				"fast path", "queries/s", "mean ms");
+		for (double margin : tried) {
+			SpellingCorrector corrector = null;
+			String[] corrections = null;
+			long fastest = Long.MAX_VALUE;
+			for (int round = 0; round < rounds; round++) {
+				corrector = new SpellingCorrector(models, 0, null, margin);
+				long start = System.nanoTime();
+				corrections = correctAll(corrector, queries);
+				fastest = Math.min(fastest, System.nanoTime() - start);
+			}
+			int correct = 0;
+			int changed = 0;
+			for (int i = 0; i < corrections.length; i++) {
+				if (corrections[i].equals(gold.get(i))) {
+					correct++;
+				}
+				if (!corrections[i].equals(exact[i])) {
+					changed++;
+				}
+			}
+			System.out.printf("%-8s %6d/%-6d %6.2f%% %8d %9.1f%% %10.1f %9.3f\n",
+					margin == Double.POSITIVE_INFINITY ? "never" : String.valueOf(margin),
+					correct, queries.size(), 100.0 * correct / queries.size(), changed,
+					100.0 * corrector.confidentQueries() / queries.size(),
+					queries.size() / (fastest / 1e9), fastest / 1e6 / queries.size());
+		}
+	}
+
+	private static String[] correctAll(SpellingCorrector corrector, List<String> queries) {
+		String[] corrections = new String[queries.size()];
+		for (int i = 0; i < corrections.length; i++) {
+			corrections[i] = corrector.bestCorrection(queries.get(i));
+		}
+		return corrections;
+	}
+
+	private static List<String> readLines(String path) throws Exception {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(new File(path)));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,19 @@
+package edu.stanford.cs276;
+
+import edu.stanford.cs276.util.IntList;
+
+/**
+ * Finds the vocabulary words near a typed word, as a faster replacement for trying
+ * every edit inside that word. Implementations must be safe to call from many
+ * threads at once.
+ */
+public interface CandidateEngine {
+
+	/**
+	 * Adds to ids and distances every word of the language model vocabulary at edit
+	 * distance 1 to maxDistance from the token s[start, end), as measured by
+	 * CandidateGenerator.distance. The token itself is not reported.
+	 */
+	public void lookup(CharSequence s, int start, int end, int maxDistance, IntList ids,
+			IntList distances);
+}
@@ -1,28 +1,24 @@
 package edu.stanford.cs276;
 
-import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
+import edu.stanford.cs276.util.IntList;
+import edu.stanford.cs276.util.LongSet;
 import edu.stanford.cs276.util.Pair;
+import edu.stanford.cs276.util.Vocabulary;
 
-public class CandidateGenerator implements Serializable {
-	private LanguageModel _lm;
+/**
+ * Generates correction candidates from the words of one language model. A generator
+ * holds no per-query state and never changes, so it can be shared by every thread
+ * that corrects queries; a new model gets a new generator (see ModelSnapshot).
+ */
+public class CandidateGenerator {
+	private final LanguageModel _lm;
 
-	private static CandidateGenerator cg_;
-
-	// Don't use the constructor since this is a Singleton instance
-	private CandidateGenerator() {}
-
-	public static CandidateGenerator get() throws Exception{
-		if (cg_ == null ){
-			cg_ = new CandidateGenerator();
-		}
-		return cg_;
-	}
-
-	public void setLanguageModel(LanguageModel lm) {
+	public CandidateGenerator(LanguageModel lm) {
 		_lm = lm;
 	}
 
@@ -32,6 +28,72 @@ public class CandidateGenerator implements Serializable {
 					'0','1','2','3','4','5','6','7','8','9',
 					' ',',', ' '};
 
+	private static final boolean[] inAlphabet = new boolean[128];
+	static {
+		for (char c : alphabet) {
+			inAlphabet[c] = true;
+		}
+	}
+
+	// True if edits may insert c or substitute c for another char
+	static boolean inAlphabet(char c) {
+		return c < inAlphabet.length && inAlphabet[c];
+	}
+
+	/**
+	 * Returns the edit distance from the token s[start, end) to word, counting
+	 * insertions, deletions, substitutions and transpositions of adjacent chars
+	 * (optimal string alignment), where a char can only be inserted or substituted
+	 * in if it is in the alphabet. These are exactly the edits that
+	 * getSingleEditCandidates applies inside a word. Returns max + 1 if the distance
+	 * is greater than max.
+	 */
+	static int distance(CharSequence s, int start, int end, String word, int max) {
+		int n = end - start;
+		int m = word.length();
+		if (Math.abs(n - m) > max) {
+			return max + 1;
+		}
+		int inf = max + 1;
+		int[] prev2 = new int[m + 1];
+		int[] prev = new int[m + 1];
+		int[] cur = new int[m + 1];
+		for (int j = 0; j <= m; j++) {
+			prev[j] = j == 0 ? 0 : (inAlphabet(word.charAt(j - 1)) ? Math.min(inf, prev[j - 1] + 1) : inf);
+		}
+		int prevRowMin = 0;
+		for (int i = 1; i <= n; i++) {
+			char a = s.charAt(start + i - 1);
+			cur[0] = Math.min(inf, i);
+			int rowMin = cur[0];
+			for (int j = 1; j <= m; j++) {
+				char b = word.charAt(j - 1);
+				int d = prev[j] + 1;
+				if (inAlphabet(b)) {
+					d = Math.min(d, cur[j - 1] + 1);
+					d = Math.min(d, prev[j - 1] + (a == b ? 0 : 1));
+				} else if (a == b) {
+					d = Math.min(d, prev[j - 1]);
+				}
+				if (i > 1 && j > 1 && a == word.charAt(j - 2) && s.charAt(start + i - 2) == b) {
+					d = Math.min(d, prev2[j - 2] + 1);
+				}
+				cur[j] = Math.min(d, inf);
+				rowMin = Math.min(rowMin, cur[j]);
+			}
+			// A transposition reaches back two rows, so stop only after two rows over max
+			if (rowMin > max && prevRowMin > max) {
+				return inf;
+			}
+			prevRowMin = rowMin;
+			int[] t = prev2;
+			prev2 = prev;
+			prev = cur;
+			cur = t;
+		}
+		return prev[m];
+	}
+
 	/**
 	 * Generates a set of candidates within 1 edit of the input query. Candidates also must have
 	 * no more than 2 - `edits` words that are not in the language model dictionary. This is
@@ -44,68 +106,252 @@ public class CandidateGenerator implements Serializable {
 	 * @return
 	 */
 	public Set<Pair<String, Integer>> getSingleEditCandidates(String query, int edits) {
-		Set<Pair<String, Integer>> candidates = new HashSet<Pair<String, Integer>>();	
+		return getSingleEditCandidates(_lm, null, query, edits);
+	}
 
-		for (int i = 0; i < query.length(); i++) {
-			StringBuilder cand = new StringBuilder(query);
+	Set<Pair<String, Integer>> getSingleEditCandidates(LanguageModel lm, CandidateEngine engine,
+			String query, int edits) {
+		final Set<Pair<String, Integer>> candidates = new HashSet<Pair<String, Integer>>();
+		addSingleEditCandidates(lm, engine, query, edits, new CandidateSink() {
+			@Override
+			public void accept(String candidate, int distance) {
+				candidates.add(new Pair<String, Integer>(candidate, distance));
+			}
+		});
+		return candidates;
+	}
+
+	// Passes the candidates of getSingleEditCandidates to sink in the order the set
+	// is built, repeats included
+	private void addSingleEditCandidates(LanguageModel lm, CandidateEngine engine, String query,
+			int edits, CandidateSink candidates) {
+		if (engine != null && !hasControlChars(query)) {
+			addEngineSingleEditCandidates(lm, engine, query, edits, candidates);
+			return;
+		}
+		EditedQuery cand = new EditedQuery(query, lm.vocabulary());
+		int n = query.length();
+
+		for (int i = 0; i < n; i++) {
 			for (char c : alphabet) {
 				if (query.charAt(i) != c) {
 					// Insertion
-					cand.insert(i, c);
-					if (_lm.hasNOrFewerInvalidWords(cand.toString(), 0)) {
-						candidates.add(new Pair<String, Integer>(cand.toString().trim().replace("  ", " "), edits));
-					}
-					cand.deleteCharAt(i);	
+					cand.set(i, i, c);
+					addIfValid(candidates, cand, edits);
 
 					// Substitution
-					char origChar = cand.charAt(i);
-					cand.setCharAt(i, c);
-					if (_lm.hasNOrFewerInvalidWords(cand.toString(), 0)) {
-						candidates.add(new Pair<String, Integer>(cand.toString().trim().replace("  ", " "), edits));
-					}
-					cand.setCharAt(i, origChar);
+					cand.set(i, i + 1, c);
+					addIfValid(candidates, cand, edits);
 				}
 			}
 			// Deletion
-			cand.deleteCharAt(i);
-			if (_lm.hasNOrFewerInvalidWords(cand.toString(), 0)) {
-				candidates.add(new Pair<String, Integer>(cand.toString().trim().replace("  ", " "), edits));
-			}
+			cand.set(i, i + 1, "");
+			addIfValid(candidates, cand, edits);
+		}
+
+		// Insertion after the last char
+		for (char c : alphabet) {
+			cand.set(n, n, c);
+			addIfValid(candidates, cand, edits);
 		}
 
 		// Transposition
-		for (int i = 0; i < query.length() - 1; i++) {
-			StringBuilder cand = new StringBuilder(query);
-			// Substitutions
-			char c1 = cand.charAt(i);
-			char c2 = cand.charAt(i + 1);
-			cand.setCharAt(i, c2);
-			cand.setCharAt(i + 1, c1);
-			if (_lm.hasNOrFewerInvalidWords(cand.toString(), 0)) {
-				candidates.add(new Pair<String, Integer>(cand.toString().trim().replace("  ", " "), edits));
+		for (int i = 0; i < n - 1; i++) {
+			char c1 = query.charAt(i);
+			char c2 = query.charAt(i + 1);
+			if (c1 == c2) {
+				continue; // Swapping equal chars leaves the query unchanged
 			}
+			cand.set(i, i + 2, c2, c1);
+			addIfValid(candidates, cand, edits);
 		}
+	}
 
-		return candidates;
+	/**
+	 * Same candidates as the brute force expansion above. Edits inside a word are
+	 * looked up in the engine, one token at a time; only the edits that insert,
+	 * delete, replace or move a space are still tried one by one.
+	 */
+	private void addEngineSingleEditCandidates(LanguageModel lm, CandidateEngine engine,
+			String query, int edits, CandidateSink candidates) {
+		Vocabulary vocab = lm.vocabulary();
+		EditedQuery cand = new EditedQuery(query, vocab);
+		IntList ids = new IntList();
+		IntList distances = new IntList();
+
+		// Tokens are split on every space, so runs of spaces and leading or trailing
+		// spaces give empty tokens, which an insertion can turn into a word.
+		int start = 0;
+		while (true) {
+			int end = query.indexOf(' ', start);
+			if (end < 0) {
+				end = query.length();
+			}
+			ids.clear();
+			distances.clear();
+			engine.lookup(query, start, end, 1, ids, distances);
+			for (int i = 0; i < ids.size(); i++) {
+				cand.set(start, end, vocab.term(ids.get(i)));
+				addIfValid(candidates, cand, edits);
+			}
+			if (end == query.length()) {
+				break;
+			}
+			start = end + 1;
+		}
+
+		int n = query.length();
+		for (int i = 0; i <= n; i++) {
+			char c = i < n ? query.charAt(i) : 0;
+			// Insert a space
+			if (c != ' ') {
+				cand.set(i, i, ' ');
+				addIfValid(candidates, cand, edits);
+			}
+			if (i == n) {
+				break;
+			}
+			if (c != ' ') {
+				// Replace a char by a space
+				cand.set(i, i + 1, ' ');
+				addIfValid(candidates, cand, edits);
+			} else {
+				// Replace a space by a char, or delete it
+				for (char a : alphabet) {
+					if (a != ' ') {
+						cand.set(i, i + 1, a);
+						addIfValid(candidates, cand, edits);
+					}
+				}
+				cand.set(i, i + 1, "");
+				addIfValid(candidates, cand, edits);
+			}
+			// Move a space by swapping it with its neighbour
+			if (i + 1 < n && (c == ' ') != (query.charAt(i + 1) == ' ')) {
+				cand.set(i, i + 2, query.charAt(i + 1), c);
+				addIfValid(candidates, cand, edits);
+			}
+		}
+	}
+
+	// Only an accepted edit is turned into a string
+	private static void addIfValid(CandidateSink candidates, EditedQuery cand, int edits) {
+		if (cand.hasNOrFewerInvalidWords(0)) {
+			candidates.accept(cand.toCandidate(), edits);
+		}
+	}
+
+	// Chars below ' ' are trimmed like spaces but do not split words; such queries
+	// are left to the brute force expansion
+	private static boolean hasControlChars(String query) {
+		for (int i = 0; i < query.length(); i++) {
+			if (query.charAt(i) < ' ') {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	// Generate all candidates w/in edit distance 2 of the target query
 	public Set<Pair<String, Integer>> getCandidates(String query) throws Exception {
+		return getCandidates(query, null);
+	}
+
+	/**
+	 * Same as getCandidates(query), but edits inside words are looked up in the
+	 * engine, which must belong to the language model. A null engine tries every edit.
+	 */
+	public Set<Pair<String, Integer>> getCandidates(String query, CandidateEngine engine)
+			throws Exception {
+		return getCandidates(_lm, engine, query);
+	}
+
+	Set<Pair<String, Integer>> getCandidates(LanguageModel lm, CandidateEngine engine,
+			String query) {
+		Set<Pair<String, Integer>> singleEdits = getSingleEditCandidates(lm, engine, query, 1);
 		Set<Pair<String, Integer>> candidates = new HashSet<Pair<String, Integer>>();
-		if (_lm.isValidQuery(query)) {
+		if (lm.isValidQuery(query)) {
 			candidates.add(new Pair<String, Integer>(query, 0));
 		}
-
-		Set<Pair<String, Integer>> singleEdits = getSingleEditCandidates(query, 1);
 		candidates.addAll(singleEdits);
-
-
 		// Edit distance of 2
 		for (Pair<String, Integer> cand : singleEdits) {
-			candidates.addAll(getSingleEditCandidates(cand.getFirst(), 2));
+			candidates.addAll(getSingleEditCandidates(lm, engine, cand.getFirst(), 2));
 		}
-
 		return candidates;
 	}
 
+	/**
+	 * Passes the candidates of getCandidates(query, engine) to sink as they are
+	 * generated instead of collecting them, each once, in no particular order. Only
+	 * a 64-bit fingerprint of each candidate is kept to recognize repeats, so two
+	 * candidates are taken for one with a probability of about 2^-64 per pair.
+	 */
+	public void streamCandidates(String query, CandidateEngine engine, CandidateSink sink) {
+		LongSet seen = new LongSet();
+		streamTwoEditCandidates(_lm, engine, streamCandidatesWithinOneEdit(_lm, engine, query, seen,
+				sink), seen, sink);
+	}
+
+	// streamCandidates in two steps, so that a caller can stop after the first: the
+	// query itself if valid, then its single edits, which are returned for the second
+	List<String> streamCandidatesWithinOneEdit(LanguageModel lm, CandidateEngine engine,
+			String query, LongSet seen, CandidateSink sink) {
+		Distinct distinct = new Distinct(seen, sink, new ArrayList<String>());
+		if (lm.isValidQuery(query)) {
+			distinct.accept(query, 0);
+		}
+		addSingleEditCandidates(lm, engine, query, 1, distinct);
+		return distinct.singleEdits;
+	}
+
+	void streamTwoEditCandidates(LanguageModel lm, CandidateEngine engine, List<String> singleEdits,
+			LongSet seen, CandidateSink sink) {
+		Distinct distinct = new Distinct(seen, sink, null);
+		for (String cand : singleEdits) {
+			addSingleEditCandidates(lm, engine, cand, 2, distinct);
+		}
+	}
+
+	// Passes on only the candidates not seen before, and keeps the single edits if
+	// given a list for them
+	private static class Distinct implements CandidateSink {
+		final LongSet seen;
+		final CandidateSink sink;
+		final List<String> singleEdits;
+
+		Distinct(LongSet seen, CandidateSink sink, List<String> singleEdits) {
+			this.seen = seen;
+			this.sink = sink;
+			this.singleEdits = singleEdits;
+		}
+
+		@Override
+		public void accept(String candidate, int distance) {
+			if (seen.add(fingerprint(candidate, distance))) {
+				if (distance == 1 && singleEdits != null) {
+					singleEdits.add(candidate);
+				}
+				sink.accept(candidate, distance);
+			}
+		}
+	}
+
+	// FNV-1a over the chars, then the distance as one more symbol outside the char
+	// range, then the MurmurHash3 finalizer, so that every bit of the fingerprint
+	// depends on every char
+	static long fingerprint(String candidate, int distance) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < candidate.length(); i++) {
+			h = (h ^ candidate.charAt(i)) * 0x100000001b3L;
+		}
+		h = (h ^ (0x10000 + distance)) * 0x100000001b3L;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,13 @@
+package edu.stanford.cs276;
+
+/**
+ * Receives correction candidates as CandidateGenerator produces them, so they can
+ * be scored without first being collected.
+ */
+public interface CandidateSink {
+
+	/**
+	 * Called once for each candidate at the given edit distance from the query.
+	 */
+	public void accept(String candidate, int distance);
+}
@@ -0,0 +1,189 @@
+package edu.stanford.cs276;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.stanford.cs276.util.Dictionary;
+import edu.stanford.cs276.util.LongIntMap;
+import edu.stanford.cs276.util.ModelFile;
+
+/**
+ * Converts language and noisy channel models saved with Java serialization by older
+ * versions into the binary model file format, in place. Files that are already in
+ * the binary format are left alone; with --verify their checksums are checked.
+ */
+public class ConvertModels {
+
+	public static void main(String[] args) throws Exception {
+		boolean verify = false;
+		String languageModelFile = Config.languageModelFile;
+		String noisyChannelFile = Config.noisyChannelFile;
+		int positional = 0;
+		for (String arg : args) {
+			if ("--verify".equals(arg)) {
+				verify = true;
+			} else if (positional == 0) {
+				languageModelFile = arg;
+				positional++;
+			} else if (positional == 1) {
+				noisyChannelFile = arg;
+				positional++;
+			} else {
+				System.err.println(
+						"Invalid arguments.\n" +
+						"./convertmodels [--verify] [<language model file> [<noisy channel file>]] \n" +
+						"SAMPLE: java edu.stanford.cs276.ConvertModels languageModel noisyChannel \n");
+				return;
+			}
+		}
+
+		if (ModelFile.isModelFile(languageModelFile)) {
+			System.out.println(languageModelFile + " is already a binary model file");
+		} else {
+			System.out.println("Converting " + languageModelFile + " ...");
+			LegacyLanguageModel legacy = (LegacyLanguageModel) readLegacy(languageModelFile);
+			convert(legacy).save(languageModelFile);
+		}
+		if (verify) {
+			check(languageModelFile, ModelFile.LANGUAGE_MODEL);
+		}
+
+		if (ModelFile.isModelFile(noisyChannelFile)) {
+			System.out.println(noisyChannelFile + " is already a binary model file");
+		} else {
+			System.out.println("Converting " + noisyChannelFile + " ...");
+			LegacyNoisyChannelModel legacy = (LegacyNoisyChannelModel) readLegacy(noisyChannelFile);
+			convert(legacy).save(noisyChannelFile);
+		}
+		if (verify) {
+			check(noisyChannelFile, ModelFile.NOISY_CHANNEL);
+		}
+		System.out.println("Done.");
+	}
+
+	private static void check(String path, int kind) throws IOException {
+		boolean ok = ModelFile.open(path, kind).verify();
+		System.out.println(path + (ok ? ": checksum OK" : ": CHECKSUM MISMATCH"));
+		if (!ok) {
+			throw new IOException("Checksum mismatch in " + path);
+		}
+	}
+
+	static LanguageModel convert(LegacyLanguageModel legacy) {
+		Dictionary unigrams = toDictionary(legacy._unigramCounts);
+		LongIntMap bigrams = new LongIntMap(legacy._bigramCounts.map.size());
+		for (Map.Entry<String, Integer> entry : legacy._bigramCounts.map.entrySet()) {
+			// Bigrams were stored as "w1 w2"; words never contain a space
+			String bigram = entry.getKey();
+			int split = bigram.indexOf(' ');
+			int id1 = unigrams.id(bigram, 0, split);
+			int id2 = unigrams.id(bigram, split + 1, bigram.length());
+			bigrams.add(LanguageModel.bigramKey(id1, id2), entry.getValue());
+		}
+		return new LanguageModel(unigrams, bigrams);
+	}
+
+	static NoisyChannelModel convert(LegacyNoisyChannelModel legacy) {
+		LegacyDictionary[] legacyCounts = legacy.empiricalCostModel.counts;
+		Dictionary[] counts = new Dictionary[legacyCounts.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = toDictionary(legacyCounts[i]);
+		}
+		return new NoisyChannelModel(new EmpiricalCostModel(counts));
+	}
+
+	// The old termCount was the number of add() calls, i.e. the sum of the counts
+	private static Dictionary toDictionary(LegacyDictionary legacy) {
+		Dictionary dict = new Dictionary(legacy.map.size());
+		for (Map.Entry<String, Integer> entry : legacy.map.entrySet()) {
+			dict.add(entry.getKey(), entry.getValue());
+		}
+		return dict;
+	}
+
+	private static Object readLegacy(String path) throws Exception {
+		LegacyInputStream in = new LegacyInputStream(new FileInputStream(path));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * The serialized classes of the old format. Field names and types mirror the
+	 * old classes exactly, since the stream is decoded against them, and each
+	 * serialVersionUID is the one computed for the old class, which streams must
+	 * carry to be read.
+	 */
+
+	static class LegacyDictionary implements Serializable {
+		private static final long serialVersionUID = 8423871557103500726L;
+		int termCount;
+		HashMap<String, Integer> map;
+	}
+
+	static class LegacyLanguageModel implements Serializable {
+		private static final long serialVersionUID = 3117051795098684197L;
+		LegacyDictionary _unigramCounts;
+		LegacyDictionary _bigramCounts;
+	}
+
+	static class LegacyEmpiricalCostModel implements Serializable {
+		private static final long serialVersionUID = -5773880246762851375L;
+		Character[] alphabet;
+		LegacyDictionary[] counts;
+	}
+
+	static class LegacyUniformCostModel implements Serializable {
+		private static final long serialVersionUID = -7651612975874121395L;
+	}
+
+	static class LegacyNoisyChannelModel implements Serializable {
+		private static final long serialVersionUID = 3584289235214668536L;
+		Object ecm_;
+		LegacyEmpiricalCostModel empiricalCostModel;
+		LegacyUniformCostModel uniformCostModel;
+	}
+
+	// Decodes the old classes as their Legacy counterparts above
+	private static class LegacyInputStream extends ObjectInputStream {
+		private static final Map<String, Class<?>> LEGACY = new HashMap<String, Class<?>>();
+		static {
+			LEGACY.put("edu.stanford.cs276.util.Dictionary", LegacyDictionary.class);
+			LEGACY.put("[Ledu.stanford.cs276.util.Dictionary;", LegacyDictionary[].class);
+			LEGACY.put("edu.stanford.cs276.LanguageModel", LegacyLanguageModel.class);
+			LEGACY.put("edu.stanford.cs276.EmpiricalCostModel", LegacyEmpiricalCostModel.class);
+			LEGACY.put("edu.stanford.cs276.UniformCostModel", LegacyUniformCostModel.class);
+			LEGACY.put("edu.stanford.cs276.NoisyChannelModel", LegacyNoisyChannelModel.class);
+		}
+
+		LegacyInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			ObjectStreamClass desc = super.readClassDescriptor();
+			Class<?> legacy = LEGACY.get(desc.getName());
+			if (legacy == null) {
+				return desc;
+			}
+			ObjectStreamClass local = ObjectStreamClass.lookup(legacy);
+			// An array's UID comes from its name; its element class is checked on its own
+			if (!legacy.isArray() && local.getSerialVersionUID() != desc.getSerialVersionUID()) {
+				throw new InvalidClassException(desc.getName(), "saved with serialVersionUID "
+						+ desc.getSerialVersionUID() + ", not that of the old format, "
+						+ local.getSerialVersionUID());
+			}
+			return local;
+		}
+	}
+}
@@ -0,0 +1,478 @@
+package edu.stanford.cs276;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.stanford.cs276.util.CountMinSketch;
+import edu.stanford.cs276.util.Dictionary;
+import edu.stanford.cs276.util.LongIntMap;
+import edu.stanford.cs276.util.LongIntRuns;
+import edu.stanford.cs276.util.MappedVocabulary;
+import edu.stanford.cs276.util.TrigramTable;
+import edu.stanford.cs276.util.Vocabulary;
+
+/**
+ * Counts the unigrams and bigrams of a corpus with a pool of worker threads. Every
+ * file is cut into chunks that end on a line break; workers take chunks off a shared
+ * list, memory-map them and tokenize the bytes in place into their own tables,
+ * which are merged once all chunks are done.
+ *
+ * Lines and words are split exactly as BufferedReader.readLine() followed by
+ * line.trim().split(" ") would split them, so the counts match a serial build. Bytes
+ * are read as ASCII; a word containing other bytes is decoded with the platform
+ * charset, as FileReader would, which assumes an ASCII-compatible charset.
+ */
+public class CorpusCounter {
+
+	private static final long CHUNK_SIZE = 32L << 20;
+
+	private final int threads;
+
+	public CorpusCounter(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Returns the data files of a corpus directory.
+	 */
+	public static List<File> corpusFiles(String corpusFilePath) {
+		List<File> files = new ArrayList<File>();
+		for (File file : new File(corpusFilePath).listFiles()) {
+			if (".".equals(file.getName()) || "..".equals(file.getName())) {
+				continue; // Ignore the self and parent aliases.
+			}
+			files.add(file);
+		}
+		return files;
+	}
+
+	/**
+	 * Adds the unigram and bigram counts of the files to the given tables.
+	 */
+	public void count(List<File> files, Dictionary unigramCounts, LongIntMap bigramCounts)
+			throws Exception {
+		long[] starts = new long[files.size()];
+		long[] ends = new long[files.size()];
+		for (int i = 0; i < ends.length; i++) {
+			ends[i] = files.get(i).length();
+		}
+		count(files, starts, ends, unigramCounts, bigramCounts);
+	}
+
+	/**
+	 * Adds the counts of bytes [starts[i], ends[i]) of each file i to the given tables.
+	 * A range must start at the beginning of the file or just after a '\n'.
+	 */
+	public void count(List<File> files, long[] starts, long[] ends, Dictionary unigramCounts,
+			LongIntMap bigramCounts) throws Exception {
+		List<Chunk> chunks = split(files, starts, ends);
+		int workerCount = workerCount(chunks);
+		if (workerCount == 1) {
+			new Worker(chunks, new AtomicInteger(), unigramCounts, bigramCounts).call();
+			return;
+		}
+
+		AtomicInteger next = new AtomicInteger();
+		List<Worker> workers = new ArrayList<Worker>();
+		for (int i = 0; i < workerCount; i++) {
+			workers.add(new Worker(chunks, next, new Dictionary(), new LongIntMap()));
+		}
+		run(workers);
+		for (Worker worker : workers) {
+			merge(worker.unigramCounts, worker.bigramCounts, unigramCounts, bigramCounts);
+		}
+	}
+
+	/**
+	 * Adds the unigram counts of the files to the given tables, and the counts of the
+	 * bigrams seen at least minCount times, in two passes over the files so that the
+	 * other bigrams never take memory. The first pass counts the unigrams exactly and
+	 * the bigrams in a Count-Min sketch of the given shape per thread; the second
+	 * counts exactly the bigrams whose estimate reaches minCount. Since an estimate is
+	 * never low, every bigram seen minCount times gets its exact count. A few rarer
+	 * ones get theirs too, from sharing counters with frequent ones; the caller is
+	 * left to prune those.
+	 */
+	public void countFrequentBigrams(List<File> files, int width, int depth, int minCount,
+			Dictionary unigramCounts, LongIntMap bigramCounts) throws Exception {
+		long[] starts = new long[files.size()];
+		long[] ends = new long[files.size()];
+		for (int i = 0; i < ends.length; i++) {
+			ends[i] = files.get(i).length();
+		}
+		List<Chunk> chunks = split(files, starts, ends);
+		int workerCount = workerCount(chunks);
+
+		AtomicInteger next = new AtomicInteger();
+		List<Worker> workers = new ArrayList<Worker>();
+		for (int i = 0; i < workerCount; i++) {
+			Worker worker = new Worker(chunks, next, new Dictionary(), null);
+			worker.sketch = new CountMinSketch(width, depth);
+			workers.add(worker);
+		}
+		run(workers);
+		CountMinSketch sketch = workers.get(0).sketch;
+		for (Worker worker : workers) {
+			if (worker.sketch != sketch) {
+				sketch.merge(worker.sketch);
+			}
+			merge(worker.unigramCounts, new LongIntMap(), unigramCounts, bigramCounts);
+		}
+		System.out.printf("Counting bigrams seen at least %d times (sketch of %d x %d, %d MB) ...\n",
+				minCount, depth, width, sketch.memoryBytes() * workerCount >> 20);
+
+		// The words are interned again, but their counts were taken by the first pass
+		next = new AtomicInteger();
+		workers.clear();
+		for (int i = 0; i < workerCount; i++) {
+			Worker worker = new Worker(chunks, next, new Dictionary(), new LongIntMap());
+			worker.filter = sketch;
+			worker.minCount = minCount;
+			workers.add(worker);
+		}
+		run(workers);
+		for (Worker worker : workers) {
+			Dictionary words = new Dictionary();
+			for (int id = 0; id < worker.unigramCounts.size(); id++) {
+				words.add(worker.unigramCounts.term(id), 0);
+			}
+			merge(words, worker.bigramCounts, unigramCounts, bigramCounts);
+		}
+	}
+
+	/**
+	 * Adds the unigram counts of the files to unigramCounts and spills their bigram
+	 * counts to runs, keyed by the word ids of the sorted vocabulary (see
+	 * MappedVocabulary.sortedIds). Each thread counts bigrams in a table of fixed
+	 * size and spills it whenever it fills up, so that at most about memoryBudget
+	 * bytes hold bigram counts at any time. This takes two passes over the files, the
+	 * first to learn the vocabulary, which has to fit in memory.
+	 */
+	public void countSpilling(List<File> files, long memoryBudget, Dictionary unigramCounts,
+			LongIntRuns runs) throws Exception {
+		long[] starts = new long[files.size()];
+		long[] ends = new long[files.size()];
+		for (int i = 0; i < ends.length; i++) {
+			ends[i] = files.get(i).length();
+		}
+		List<Chunk> chunks = split(files, starts, ends);
+		int workerCount = workerCount(chunks);
+
+		AtomicInteger next = new AtomicInteger();
+		List<Worker> workers = new ArrayList<Worker>();
+		for (int i = 0; i < workerCount; i++) {
+			workers.add(new Worker(chunks, next, new Dictionary(), null));
+		}
+		run(workers);
+		for (Worker worker : workers) {
+			merge(worker.unigramCounts, new LongIntMap(), unigramCounts, new LongIntMap());
+		}
+
+		int spillAt = spillAt(memoryBudget, workerCount);
+		System.out.printf("Counting bigrams in %d x %d entries, spilling to %s ...\n",
+				workerCount, spillAt, runs.directory());
+		int[] ids = MappedVocabulary.sortedIds(unigramCounts);
+		next = new AtomicInteger();
+		workers.clear();
+		for (int i = 0; i < workerCount; i++) {
+			// Words are looked up in the finished vocabulary, so none are counted here
+			Worker worker = new Worker(chunks, next, null, new LongIntMap(spillAt));
+			worker.words = unigramCounts;
+			worker.ids = ids;
+			worker.runs = runs;
+			worker.spillAt = spillAt;
+			workers.add(worker);
+		}
+		run(workers);
+	}
+
+	/**
+	 * Spills the counts of the word triples of each line of the files to runs, keyed
+	 * as by TrigramTable.key, in the same bounded tables as countSpilling. Words are
+	 * looked up in vocab, which must hold every word of the files, and keyed by the
+	 * id ids maps theirs to.
+	 */
+	public void countTrigrams(List<File> files, long memoryBudget, Vocabulary vocab, int[] ids,
+			LongIntRuns runs) throws Exception {
+		long[] starts = new long[files.size()];
+		long[] ends = new long[files.size()];
+		for (int i = 0; i < ends.length; i++) {
+			ends[i] = files.get(i).length();
+		}
+		List<Chunk> chunks = split(files, starts, ends);
+		int workerCount = workerCount(chunks);
+		int spillAt = spillAt(memoryBudget, workerCount);
+		System.out.printf("Counting trigrams in %d x %d entries, spilling to %s ...\n",
+				workerCount, spillAt, runs.directory());
+		AtomicInteger next = new AtomicInteger();
+		List<Worker> workers = new ArrayList<Worker>();
+		for (int i = 0; i < workerCount; i++) {
+			Worker worker = new Worker(chunks, next, null, new LongIntMap(spillAt));
+			worker.words = vocab;
+			worker.ids = ids;
+			worker.runs = runs;
+			worker.spillAt = spillAt;
+			worker.trigrams = true;
+			workers.add(worker);
+		}
+		run(workers);
+	}
+
+	// Keys each worker may count before spilling, when they share memoryBudget bytes.
+	// A table slot takes 12 bytes, and sorting its key for a spill up to 8 more.
+	private static int spillAt(long memoryBudget, int workerCount) {
+		long perWorker = memoryBudget / workerCount;
+		int capacity = 16;
+		while (capacity < 1 << 30 && 2L * capacity * 17 <= perWorker) {
+			capacity <<= 1;
+		}
+		return LongIntMap.maxSizeFor(capacity);
+	}
+
+	private List<Chunk> split(List<File> files, long[] starts, long[] ends) throws IOException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (int i = 0; i < files.size(); i++) {
+			System.out.printf("Reading data file %s ...\n", files.get(i).getName());
+			split(files.get(i), starts[i], ends[i], chunks);
+		}
+		return chunks;
+	}
+
+	private int workerCount(List<Chunk> chunks) {
+		return Math.min(threads, Math.max(1, chunks.size()));
+	}
+
+	// Runs the workers, on a pool unless there is only one
+	private static void run(List<Worker> workers) throws Exception {
+		if (workers.size() == 1) {
+			workers.get(0).call();
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+		try {
+			for (Future<Void> done : pool.invokeAll(workers)) {
+				done.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// Adds one worker's counts to the totals, translating its word ids
+	static void merge(Dictionary fromUnigrams, LongIntMap fromBigrams, Dictionary toUnigrams,
+			LongIntMap toBigrams) {
+		int[] remap = new int[fromUnigrams.size()];
+		for (int id = 0; id < remap.length; id++) {
+			remap[id] = toUnigrams.add(fromUnigrams.term(id), fromUnigrams.count(id));
+		}
+		for (long key : fromBigrams.sortedKeys()) {
+			toBigrams.add(LanguageModel.bigramKey(remap[(int) (key >>> 32)], remap[(int) key]),
+					fromBigrams.get(key));
+		}
+	}
+
+	// Cuts bytes [start, length) of a file into chunks of about CHUNK_SIZE bytes, each
+	// ending just after a '\n'
+	private static void split(File file, long start, long length, List<Chunk> chunks)
+			throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			while (start < length) {
+				long end = Math.min(start + CHUNK_SIZE, length);
+				if (end < length) {
+					in.seek(end - 1);
+					int b;
+					while ((b = in.read()) != -1 && b != '\n') {
+						end++;
+					}
+					end = Math.min(end, length);
+				}
+				chunks.add(new Chunk(file, start, end - start));
+				start = end;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static class Chunk {
+		final File file;
+		final long offset;
+		final long length;
+
+		Chunk(File file, long offset, long length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static class Worker implements Callable<Void> {
+		private final List<Chunk> chunks;
+		private final AtomicInteger next;
+		final Dictionary unigramCounts;
+		final LongIntMap bigramCounts;
+		// Set to count the bigrams in a sketch instead of bigramCounts, or to count in
+		// bigramCounts only those whose estimate in filter reaches minCount; either way
+		// a bigram is known to the sketch by the hashes of its two words
+		CountMinSketch sketch;
+		CountMinSketch filter;
+		int minCount;
+		// Set to look the words up in a complete vocabulary, taking the ids it maps
+		// them to, and to spill bigramCounts to runs whenever it holds spillAt keys
+		Vocabulary words;
+		int[] ids;
+		LongIntRuns runs;
+		int spillAt;
+		// Set to count word triples in bigramCounts instead of bigrams
+		boolean trigrams;
+		private final Bytes bytes = new Bytes();
+
+		Worker(List<Chunk> chunks, AtomicInteger next, Dictionary unigramCounts,
+				LongIntMap bigramCounts) {
+			this.chunks = chunks;
+			this.next = next;
+			this.unigramCounts = unigramCounts;
+			this.bigramCounts = bigramCounts;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			int i;
+			while ((i = next.getAndIncrement()) < chunks.size()) {
+				Chunk chunk = chunks.get(i);
+				RandomAccessFile in = new RandomAccessFile(chunk.file, "r");
+				try {
+					bytes.buf = in.getChannel().map(FileChannel.MapMode.READ_ONLY, chunk.offset, chunk.length);
+				} finally {
+					in.close();
+				}
+				countLines(bytes.buf.limit());
+			}
+			if (runs != null && bigramCounts.size() > 0) {
+				runs.spill(bigramCounts);
+				bigramCounts.clear();
+			}
+			return null;
+		}
+
+		// Splits the chunk into lines the way readLine() does: at "\n", "\r" or "\r\n"
+		private void countLines(int end) throws IOException {
+			ByteBuffer buf = bytes.buf;
+			int pos = 0;
+			while (pos < end) {
+				int eol = pos;
+				byte b = 0;
+				while (eol < end && (b = buf.get(eol)) != '\n' && b != '\r') {
+					eol++;
+				}
+				countLine(pos, eol);
+				if (eol < end && b == '\r' && eol + 1 < end && buf.get(eol + 1) == '\n') {
+					eol++;
+				}
+				pos = eol + 1;
+			}
+		}
+
+		// Counts the words of line.trim().split(" ")
+		private void countLine(int start, int end) throws IOException {
+			while (end > start && (bytes.buf.get(end - 1) & 0xff) <= ' ') {
+				end--;
+			}
+			while (start < end && (bytes.buf.get(start) & 0xff) <= ' ') {
+				start++;
+			}
+			int prevPrevId = -1;
+			int prevId = -1;
+			int wordStart = start;
+			for (int i = start; i <= end; i++) {
+				if (i == end || bytes.buf.get(i) == ' ') {
+					int id = add(wordStart, i);
+					if (trigrams) {
+						if (prevPrevId >= 0) {
+							addKey(TrigramTable.key(prevPrevId, prevId, id));
+						}
+					} else if (wordStart > start) {
+						addBigram(prevId, id);
+					}
+					prevPrevId = prevId;
+					prevId = id;
+					wordStart = i + 1;
+				}
+			}
+		}
+
+		private void addKey(long key) throws IOException {
+			bigramCounts.add(key);
+			if (runs != null && bigramCounts.size() >= spillAt) {
+				runs.spill(bigramCounts);
+				bigramCounts.clear();
+			}
+		}
+
+		private void addBigram(int id1, int id2) throws IOException {
+			if (sketch == null && filter == null) {
+				if (bigramCounts != null) {
+					addKey(LanguageModel.bigramKey(id1, id2));
+				}
+				return;
+			}
+			long key = (long) unigramCounts.term(id1).hashCode() << 32
+					| (unigramCounts.term(id2).hashCode() & 0xffffffffL);
+			if (sketch != null) {
+				sketch.add(key);
+			} else if (filter.estimate(key) >= minCount) {
+				bigramCounts.add(LanguageModel.bigramKey(id1, id2));
+			}
+		}
+
+		private int add(int start, int end) {
+			for (int i = start; i < end; i++) {
+				if (bytes.buf.get(i) < 0) {
+					byte[] word = new byte[end - start];
+					for (int j = 0; j < word.length; j++) {
+						word[j] = bytes.buf.get(start + j);
+					}
+					String term = new String(word, Charset.defaultCharset());
+					return words != null ? ids[words.id(term, 0, term.length())] : unigramCounts.add(term);
+				}
+			}
+			return words != null ? ids[words.id(bytes, start, end)] : unigramCounts.add(bytes, start, end);
+		}
+	}
+
+	// ASCII bytes of a mapped chunk seen as chars, so words can be looked up in place
+	private static class Bytes implements CharSequence {
+		ByteBuffer buf;
+
+		@Override
+		public int length() {
+			return buf.limit();
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) (buf.get(index) & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			char[] chars = new char[end - start];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = charAt(start + i);
+			}
+			return new String(chars);
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package edu.stanford.cs276;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.stanford.cs276.util.Pair;
+
+/**
+ * Serves corrections over HTTP on the loopback interface, so the models are loaded
+ * once rather than by every run of the corrector. Requests are handled by a pool
+ * of threads, all sharing one corrector:
+ *
+ *   GET  /correct?q=QUERY   the correction of QUERY, as text
+ *   GET  /correct?q=QUERY&n=N
+ *                           up to N corrections, best first, one per line with
+ *                           its score after a tab; N is at most MAX_CORRECTIONS
+ *                           (not with --lattice)
+ *   POST /batch             one query per line in the body, of at most
+ *                           MAX_BATCH_BYTES; one correction per line in the
+ *                           response, in the same order
+ *   POST /reload            loads the saved models again and swaps them in
+ *   GET  /stats             queries and requests answered so far, and the
+ *                           generation of the models in use
+ *
+ * Text is UTF-8, and a request that fails while it is handled is answered with
+ * 500. The channel model type, engine, lattice, cache and confidence margin
+ * options are those of RunCorrector and hold for the life of the server. Models
+ * rebuilt by buildmodels while the server runs are used from the next /reload on;
+ * queries already running finish with the models they started with.
+ */
+public class CorrectionServer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Most corrections one /correct request may ask for.
+	 */
+	public static final int MAX_CORRECTIONS = 100;
+
+	/**
+	 * Largest /batch request body accepted; a larger one is answered with 413.
+	 */
+	public static final int MAX_BATCH_BYTES = 1 << 20;
+
+	private final String _probabilityType;
+	private final String _engineName;
+	private final ModelHolder _models;
+	private final SpellingCorrector _corrector;
+	private final LatticeDecoder _decoder;
+	private final AtomicLong _queries = new AtomicLong();
+	private final AtomicLong _requests = new AtomicLong();
+
+	/**
+	 * Loads the saved models, to answer with a lattice decoder of the given beam
+	 * width if lattice is set, else with a corrector caching up to cacheCapacity
+	 * corrections. The lattice decoder uses the trie if the engine is brute.
+	 */
+	public CorrectionServer(String probabilityType, String engineName, boolean lattice,
+			int beamWidth, int cacheCapacity) throws Exception {
+		this(probabilityType, engineName, lattice, beamWidth, cacheCapacity,
+				Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Also gives the corrector a confidence margin; see SpellingCorrector.
+	 */
+	public CorrectionServer(String probabilityType, String engineName, boolean lattice,
+			int beamWidth, int cacheCapacity, double confidenceMargin) throws Exception {
+		_probabilityType = probabilityType;
+		_engineName = lattice && "brute".equals(engineName) ? "trie" : engineName;
+		_models = new ModelHolder(ModelSnapshot.load(_probabilityType, _engineName));
+		_corrector = new SpellingCorrector(_models, cacheCapacity, null, confidenceMargin);
+		_decoder = lattice ? new LatticeDecoder(_models, beamWidth) : null;
+	}
+
+	/**
+	 * Loads the saved models again and swaps them in, returning the new snapshot. If
+	 * they cannot be loaded the models in use are kept. Reloads are made one at a
+	 * time; queries never wait for one.
+	 */
+	public synchronized ModelSnapshot reload() throws Exception {
+		ModelSnapshot snapshot = ModelSnapshot.load(_probabilityType, _engineName);
+		_models.swap(snapshot);
+		return snapshot;
+	}
+
+	public String correct(String query) {
+		_queries.incrementAndGet();
+		return _decoder != null ? _decoder.bestCorrection(query) : _corrector.bestCorrection(query);
+	}
+
+	/**
+	 * Starts serving on the loopback port with the given number of threads, and
+	 * returns the server so that it can be stopped.
+	 */
+	public HttpServer start(int port, int threads) throws IOException {
+		// Responses go out as headers and body in separate writes, which Nagle's
+		// algorithm holds back for the client's delayed ACK, about 40 ms per request.
+		// The JDK server reads this setting once, when the first server is made.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		HttpServer server = HttpServer.create(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/correct", new Handler() {
+			@Override
+			void serve(HttpExchange exchange) throws IOException {
+				String query = parameter(exchange.getRequestURI().getRawQuery(), "q");
+				if (query == null) {
+					respond(exchange, 400, "Missing parameter q\n");
+					return;
+				}
+				String n = parameter(exchange.getRequestURI().getRawQuery(), "n");
+				if (n == null) {
+					respond(exchange, 200, correct(query) + "\n");
+					return;
+				}
+				int count;
+				try {
+					count = Integer.parseInt(n);
+				} catch (NumberFormatException e) {
+					count = 0;
+				}
+				if (count < 1 || count > MAX_CORRECTIONS || _decoder != null) {
+					respond(exchange, 400, _decoder != null ? "n is not supported with --lattice\n"
+							: "n must be a number from 1 to " + MAX_CORRECTIONS + "\n");
+					return;
+				}
+				_queries.incrementAndGet();
+				StringBuilder corrections = new StringBuilder();
+				for (Pair<String, Double> correction : _corrector.bestCorrections(query, count)) {
+					corrections.append(correction.getFirst()).append('\t')
+							.append(correction.getSecond()).append('\n');
+				}
+				respond(exchange, 200, corrections.toString());
+			}
+		});
+		server.createContext("/batch", new Handler() {
+			@Override
+			void serve(HttpExchange exchange) throws IOException {
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					respond(exchange, 405, "POST one query per line\n");
+					return;
+				}
+				byte[] body = readBody(exchange, MAX_BATCH_BYTES);
+				if (body == null) {
+					respond(exchange, 413, "The body must be at most " + MAX_BATCH_BYTES + " bytes\n");
+					return;
+				}
+				List<String> queries = new ArrayList<String>();
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(new ByteArrayInputStream(body), UTF8));
+				String line;
+				while ((line = in.readLine()) != null) {
+					queries.add(line);
+				}
+				StringBuilder corrections = new StringBuilder();
+				for (String query : queries) {
+					corrections.append(correct(query)).append('\n');
+				}
+				respond(exchange, 200, corrections.toString());
+			}
+		});
+		server.createContext("/reload", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					respond(exchange, 405, "POST to reload the models\n");
+					return;
+				}
+				long start = System.currentTimeMillis();
+				ModelSnapshot snapshot;
+				try {
+					snapshot = reload();
+				} catch (Exception e) {
+					respond(exchange, 500, "Models not reloaded: " + e.getMessage() + "\n");
+					return;
+				}
+				respond(exchange, 200, String.format("generation %d loaded in %d ms\n",
+						snapshot.generation(), System.currentTimeMillis() - start));
+			}
+		});
+		server.createContext("/stats", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, String.format("queries %d\nrequests %d\ngeneration %d\n",
+						_queries.get(), _requests.get(), _models.current().generation()));
+			}
+		});
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		server.setExecutor(pool);
+		server.start();
+		return server;
+	}
+
+	// Answers 500 when serving fails, rather than dropping the connection unanswered
+	private abstract class Handler implements HttpHandler {
+		abstract void serve(HttpExchange exchange) throws IOException;
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				serve(exchange);
+			} catch (RuntimeException e) {
+				fail(exchange, e);
+			} catch (Error e) {
+				fail(exchange, e);
+			}
+		}
+
+		private void fail(HttpExchange exchange, Throwable e) throws IOException {
+			// Headers already sent cannot be taken back; the exchange is just closed
+			if (exchange.getResponseCode() != -1) {
+				exchange.close();
+				return;
+			}
+			respond(exchange, 500, "Request failed: " + e + "\n");
+		}
+	}
+
+	private void respond(HttpExchange exchange, int status, String body) throws IOException {
+		_requests.incrementAndGet();
+		byte[] bytes = body.getBytes(UTF8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	// The request body, or null if it is longer than max bytes, which are not read
+	// past
+	private static byte[] readBody(HttpExchange exchange, int max) throws IOException {
+		String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		try {
+			if (length != null && Long.parseLong(length.trim()) > max) {
+				return null;
+			}
+		} catch (NumberFormatException e) {
+			// Left to the limit on what is read
+		}
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			if (body.size() + n > max) {
+				return null;
+			}
+			body.write(buffer, 0, n);
+		}
+		return body.toByteArray();
+	}
+
+	// Decoded value of a parameter of a URL query string, or null if it is absent
+	private static String parameter(String rawQuery, String name)
+			throws UnsupportedEncodingException {
+		if (rawQuery == null) {
+			return null;
+		}
+		for (String pair : rawQuery.split("&")) {
+			int eq = pair.indexOf('=');
+			String key = eq < 0 ? pair : pair.substring(0, eq);
+			if (name.equals(URLDecoder.decode(key, "UTF-8"))) {
+				return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+			}
+		}
+		return null;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = 8276;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String engineName = "brute";
+		boolean lattice = false;
+		int beamWidth = 16;
+		int cacheCapacity = 0;
+		double confidenceMargin = Double.POSITIVE_INFINITY;
+		List<String> positional = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ("--port".equals(args[i]) && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if ("--engine".equals(args[i]) && i + 1 < args.length) {
+				engineName = args[++i];
+			} else if ("--lattice".equals(args[i])) {
+				lattice = true;
+			} else if ("--beam".equals(args[i]) && i + 1 < args.length) {
+				beamWidth = Integer.parseInt(args[++i]);
+			} else if ("--cache".equals(args[i]) && i + 1 < args.length) {
+				cacheCapacity = Integer.parseInt(args[++i]);
+			} else if ("--confidence-margin".equals(args[i]) && i + 1 < args.length) {
+				confidenceMargin = Double.parseDouble(args[++i]);
+			} else {
+				positional.add(args[i]);
+			}
+		}
+		if (positional.size() != 1) {
+			System.err.println(
+					"Invalid arguments.  Argument count must be 1 \n" +
+					"java edu.stanford.cs276.CorrectionServer <uniform | empirical> \n" +
+					"Options: \n" +
+					"  --port N      listen on loopback port N (default: 8276) \n" +
+					"  --threads N   handle N requests at a time (default: all cores) \n" +
+					"  --engine E, --lattice, --beam N, --cache N, --confidence-margin M \n" +
+					"                as for runcorrector \n");
+			return;
+		}
+
+		long startTime = System.currentTimeMillis();
+		new CorrectionServer(positional.get(0), engineName, lattice, beamWidth, cacheCapacity,
+				confidenceMargin).start(port, threads);
+		System.out.printf("Serving corrections on http://localhost:%d/ with %d threads"
+				+ " (models loaded in %d ms)\n", port, threads,
+				System.currentTimeMillis() - startTime);
+	}
+}
@@ -1,8 +1,12 @@
 package edu.stanford.cs276;
 
-import java.io.Serializable;
-
-public interface EditCostModel extends Serializable {
+public interface EditCostModel {
 
 	public double editProbability(String original, String R, int distance);
+
+	/**
+	 * Returns an upper bound on editProbability(original, R, distance) over every
+	 * original that differs from R.
+	 */
+	public double maxEditProbability(int distance);
 }
@@ -0,0 +1,194 @@
+package edu.stanford.cs276;
+
+import edu.stanford.cs276.util.IntList;
+import edu.stanford.cs276.util.Vocabulary;
+
+/**
+ * A query with one span replaced, read in place as a CharSequence. Candidate
+ * generation tries thousands of edits per query and rejects most of them for
+ * leaving an unknown word. Checking an edit through this view allocates nothing,
+ * and only the words that overlap the edit are looked up: every other word is a
+ * word of the original query, whose validity is worked out once. A String is only
+ * built for an edit that is accepted.
+ */
+class EditedQuery implements CharSequence {
+	private final String query;
+	private final Vocabulary vocab;
+	// The words of the original query: where each starts and ends, and how many of
+	// the words before each one are unknown
+	private final IntList wordStarts = new IntList();
+	private final IntList wordEnds = new IntList();
+	private final IntList unknownBefore = new IntList();
+	// For each position, the first word ending at or after it
+	private final int[] wordAt;
+	// For each position where a word starts, the end of that word (-1 elsewhere) and
+	// whether it is in the vocabulary
+	private final int[] wordEnd;
+	private final boolean[] known;
+
+	private int from;
+	private int to;
+	private CharSequence replacement = "";
+	private final StringBuilder chars = new StringBuilder(2);
+
+	EditedQuery(String query, Vocabulary vocab) {
+		this.query = query;
+		this.vocab = vocab;
+		wordAt = new int[query.length() + 1];
+		wordEnd = new int[query.length() + 1];
+		known = new boolean[query.length() + 1];
+		for (int i = 0; i < wordEnd.length; i++) {
+			wordEnd[i] = -1;
+		}
+		int end = LanguageModel.trimEnd(query);
+		int start = LanguageModel.trimStart(query, end);
+		int unknown = 0;
+		while (true) {
+			int tokenEnd = LanguageModel.tokenEnd(query, start, end);
+			wordEnd[start] = tokenEnd;
+			known[start] = vocab.id(query, start, tokenEnd) >= 0;
+			wordStarts.add(start);
+			wordEnds.add(tokenEnd);
+			unknownBefore.add(unknown);
+			if (!known[start]) {
+				unknown++;
+			}
+			if (tokenEnd == end) {
+				break;
+			}
+			start = tokenEnd + 1;
+		}
+		unknownBefore.add(unknown);
+		for (int i = 0, word = 0; i < wordAt.length; i++) {
+			while (word < wordEnds.size() && wordEnds.get(word) < i) {
+				word++;
+			}
+			wordAt[i] = word;
+		}
+		set(0, 0, "");
+	}
+
+	/**
+	 * Replaces query[from, to) with s, undoing the previous edit.
+	 */
+	void set(int from, int to, CharSequence s) {
+		this.from = from;
+		this.to = to;
+		this.replacement = s;
+	}
+
+	void set(int from, int to, char c) {
+		chars.setLength(0);
+		chars.append(c);
+		set(from, to, chars);
+	}
+
+	void set(int from, int to, char c1, char c2) {
+		chars.setLength(0);
+		chars.append(c1).append(c2);
+		set(from, to, chars);
+	}
+
+	@Override
+	public int length() {
+		return query.length() - (to - from) + replacement.length();
+	}
+
+	@Override
+	public char charAt(int i) {
+		if (i < from) {
+			return query.charAt(i);
+		}
+		int r = replacement.length();
+		if (i < from + r) {
+			return replacement.charAt(i - from);
+		}
+		return query.charAt(i - from - r + to);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return toString().subSequence(start, end);
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder(length()).append(query, 0, from).append(replacement)
+				.append(query, to, query.length()).toString();
+	}
+
+	/**
+	 * The edited query as a candidate: trimmed, with double spaces made single.
+	 */
+	String toCandidate() {
+		return toString().trim().replace("  ", " ");
+	}
+
+	/**
+	 * Same as LanguageModel.hasNOrFewerInvalidWords(toString(), n).
+	 */
+	boolean hasNOrFewerInvalidWords(int n) {
+		// When the edit leaves the first and last words alone, the trimmed bounds and
+		// every word outside the edited ones are those of the original query, so only
+		// the edited words are split and looked up
+		int words = wordStarts.size();
+		int first = wordAt[from];
+		int last = wordAt[to];
+		if (first > 0 && last < words - 1) {
+			int errorCount = unknownBefore.get(first) + unknownBefore.get(words)
+					- unknownBefore.get(last + 1);
+			if (errorCount > n) {
+				return false;
+			}
+			int start = wordStarts.get(first);
+			int end = wordEnds.get(last) - (to - from - replacement.length());
+			while (true) {
+				int tokenEnd = LanguageModel.tokenEnd(this, start, end);
+				if (vocab.id(this, start, tokenEnd) < 0) {
+					errorCount++;
+				}
+				if (errorCount > n) {
+					return false;
+				}
+				if (tokenEnd == end) {
+					return true;
+				}
+				start = tokenEnd + 1;
+			}
+		}
+
+		int errorCount = 0;
+		int end = LanguageModel.trimEnd(this);
+		int start = LanguageModel.trimStart(this, end);
+		while (true) {
+			int tokenEnd = LanguageModel.tokenEnd(this, start, end);
+			if (!isKnown(start, tokenEnd)) {
+				errorCount++;
+			}
+			if (errorCount > n) {
+				return false;
+			}
+			if (tokenEnd == end) {
+				break;
+			}
+			start = tokenEnd + 1;
+		}
+		return true;
+	}
+
+	// Whether the word at [start, end) of the edited query is in the vocabulary
+	private boolean isKnown(int start, int end) {
+		int r = replacement.length();
+		if (end <= from) {
+			if (wordEnd[start] == end) {
+				return known[start];
+			}
+		} else if (start >= from + r) {
+			int shift = to - from - r;
+			if (wordEnd[start + shift] == end + shift) {
+				return known[start + shift];
+			}
+		}
+		return vocab.id(this, start, end) >= 0;
+	}
+}
@@ -1,25 +1,46 @@
 package edu.stanford.cs276;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Scanner;
 
 import edu.stanford.cs276.util.Dictionary;
-import edu.stanford.cs276.util.Pair;
+import edu.stanford.cs276.util.IngestedInputs;
+import edu.stanford.cs276.util.MappedVocabulary;
+import edu.stanford.cs276.util.ModelFile;
+import edu.stanford.cs276.util.Vocabulary;
 
 public class EmpiricalCostModel implements EditCostModel{
 	private static final double ZERO_EDIT_LOGP = Math.log(0.95);
 
 	Character[] alphabet = CandidateGenerator.alphabet;
-	private Dictionary[] counts;
+	private Vocabulary[] counts;
 	private static int DEL = 0, INS = 1, SUB = 2, TRANS = 3, COUNT = 4;;
+	private static final int MAX_ALIGNED_EDITS = 2;
+	// The count tables packed for scoring: every char of a counted key, sorted, and
+	// its position in chars for the ASCII ones. A char that is in no key shares the
+	// position chars.length, whose counts are all 0. costs holds the smoothed log cost
+	// of each edit, indexed by type, then the position of each of its two chars.
+	private char[] chars;
+	private int[] asciiIndex;
+	private double[] costs;
+	private double maxEditCost;
 	
 	public EmpiricalCostModel(String editsFile) throws IOException {
-		BufferedReader input = new BufferedReader(new FileReader(editsFile));
-		System.out.println("Constructing edit distance map...");
 		//Init dictionaries [delete, insert, sub, trans, COUNT]
-		counts = new Dictionary[]{new Dictionary(),new Dictionary(),new Dictionary(),new Dictionary(),new Dictionary()};
+		this(new Dictionary[]{new Dictionary(),new Dictionary(),new Dictionary(),new Dictionary(),new Dictionary()},
+				new File(editsFile), 0, new File(editsFile).length());
+	}
+
+	// Adds the edits in bytes [from, to) of editsFile to the counts
+	EmpiricalCostModel(Dictionary[] counts, File editsFile, long from, long to) throws IOException {
+		BufferedReader input = new BufferedReader(new InputStreamReader(
+				IngestedInputs.open(editsFile, from, to)));
+		System.out.println("Constructing edit distance map...");
+		this.counts = counts;
 
 		String line = null;
 		while ((line = input.readLine()) != null) {
@@ -32,9 +53,9 @@ public class EmpiricalCostModel implements EditCostModel{
 			if (noisy.equals(clean)) continue;
 
 			//Determine the type of error and record its count
-			Pair<Integer,String> edit = new Pair<Integer,String>(0,"");
-			findEdits(clean,noisy,edit);
-			counts[edit.getFirst()].add(edit.getSecond());
+			long edit = findEdit(clean, noisy);
+			counts[type(edit)].add(new String(new char[] {
+					firstChar(edit, clean, noisy), secondChar(edit, clean, noisy)}));
 			//Add each unigram and bigram for the correct query
 			counts[COUNT].add("#"+clean.substring(0,1));
 			counts[COUNT].add("#");
@@ -46,67 +67,292 @@ public class EmpiricalCostModel implements EditCostModel{
 			lineSc.close();
 		}
 		input.close();
+		pack();
 		System.out.println("Done.");
 	}
 
+	EmpiricalCostModel(Vocabulary[] counts) {
+		this.counts = counts;
+		pack();
+	}
+
+	// Builds chars, asciiIndex and costs from the count tables, which only hold keys
+	// of one or two chars
+	private void pack() {
+		StringBuilder seen = new StringBuilder();
+		for (Vocabulary count : counts) {
+			for (int id = 0; id < count.size(); id++) {
+				seen.append(count.term(id));
+			}
+		}
+		char[] all = seen.toString().toCharArray();
+		Arrays.sort(all);
+		int n = 0;
+		for (int i = 0; i < all.length; i++) {
+			if (i == 0 || all[i] != all[i - 1]) {
+				all[n++] = all[i];
+			}
+		}
+		chars = Arrays.copyOf(all, n);
+		asciiIndex = new int[128];
+		for (char c = 0; c < asciiIndex.length; c++) {
+			asciiIndex[c] = position(c);
+		}
+
+		// Char and char pair counts of the correct queries, then the costs
+		int size = n + 1;
+		int[] charCounts = new int[size];
+		int[] pairCounts = new int[size * size];
+		int[][] editCounts = new int[TRANS + 1][size * size];
+		for (int type = DEL; type <= COUNT; type++) {
+			for (int id = 0; id < counts[type].size(); id++) {
+				String key = counts[type].term(id);
+				int c = counts[type].count(id);
+				if (type == COUNT && key.length() == 1) {
+					charCounts[index(key.charAt(0))] = c;
+				} else if (key.length() == 2) {
+					int cell = index(key.charAt(0)) * size + index(key.charAt(1));
+					if (type == COUNT) {
+						pairCounts[cell] = c;
+					} else {
+						editCounts[type][cell] = c;
+					}
+				}
+			}
+		}
+		costs = new double[(TRANS + 1) * size * size];
+		maxEditCost = Double.NEGATIVE_INFINITY;
+		for (int type = DEL; type <= TRANS; type++) {
+			for (int cell = 0; cell < size * size; cell++) {
+				double denom = type == INS || type == SUB ? charCounts[cell / size] : pairCounts[cell];
+				double cost = Math.log(((double) editCounts[type][cell] + 1) / (denom + alphabet.length));
+				costs[type * size * size + cell] = cost;
+				maxEditCost = Math.max(maxEditCost, cost);
+			}
+		}
+	}
 
-	// You need to update this to calculate the proper empirical cost
+	// Position of c in chars, or chars.length if absent
+	private int position(char c) {
+		int i = Arrays.binarySearch(chars, c);
+		return i >= 0 ? i : chars.length;
+	}
+
+	private int index(char c) {
+		return c < 128 ? asciiIndex[c] : position(c);
+	}
+
+	// Reads the count tables in place from sections first .. first+4 of a model file
+	static EmpiricalCostModel read(ModelFile file, int first) {
+		Vocabulary[] counts = new Vocabulary[COUNT + 1];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = new MappedVocabulary(file.section(first + i));
+		}
+		return new EmpiricalCostModel(counts);
+	}
+
+	// Heap copies of the count tables, which can be added to
+	Dictionary[] copyCounts() {
+		Dictionary[] copies = new Dictionary[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			copies[i] = new Dictionary(counts[i].size());
+			for (int id = 0; id < counts[i].size(); id++) {
+				copies[i].add(counts[i].term(id), counts[i].count(id));
+			}
+		}
+		return copies;
+	}
+
+	// Writes the count tables as five consecutive sections
+	void write(ModelFile.Writer writer) throws IOException {
+		for (Vocabulary count : counts) {
+			MappedVocabulary.write(count, writer.beginSection());
+		}
+	}
+
+
+	// The log probability of the most likely alignment of candidate with typed. The
+	// alignment is found rather than guessed from the first difference, so distance
+	// is not needed.
 	@Override
 	public double editProbability(String candidate, String typed, int distance) {
 		if (candidate.equals(typed)) return ZERO_EDIT_LOGP;
-		Pair<Integer,String> edit = new Pair<Integer,String>(0,"");
-		Pair<Integer,Integer> idx = findEdits(candidate,typed,edit);
-		//Determine the type of edit and get its counts
-		double cost = editCost(edit);
-		if (distance>1 && !candidate.substring(idx.getFirst()).equals(typed.substring(idx.getSecond()))){
-			findEdits(candidate.substring(idx.getFirst()),typed.substring(idx.getSecond()),edit);
-			cost+=editCost(edit);
-		}
-		return cost;
+		return align(candidate, typed);
 	}
 	
-	private double editCost(Pair<Integer,String> edit){
-		double denom;
-		switch (edit.getFirst()){
-			case 1:
-			case 2:
-				denom = counts[COUNT].count(edit.getSecond().substring(0,1));
-				break;
-			default:
-				denom = counts[COUNT].count(edit.getSecond());
-		}
-		return Math.log(((double) counts[edit.getFirst()].count(edit.getSecond())+1) / (denom + alphabet.length));
-	}
-
-	//Find the first edit that turns original into R, returns a tuple with editType, originalstring position
-	private Pair<Integer,Integer> findEdits(String _actual, String _typed, Pair<Integer,String> edit) {
-		//Prepend string start char
-		String actual = new String("#" + _actual);
-		String typed = new String("#" + _typed);
-		int i=0;
-		while(i < Math.min(actual.length(), typed.length()) && actual.charAt(i) == typed.charAt(i)){
+	// An alignment has at least one edit, and each costs no more than the highest
+	// single edit cost, which is normally below 0. An edit never seen costs
+	// log(1 / alphabet.length) at most, which is the cost of one with a char in no key.
+	@Override
+	public double maxEditProbability(int distance) {
+		return maxEditCost > 0 ? Double.POSITIVE_INFINITY : maxEditCost;
+	}
+
+	// Per-thread DP rows and char positions, grown as needed
+	private static class Alignment {
+		double[] prev2 = new double[0];
+		double[] prev = new double[0];
+		double[] cur = new double[0];
+		int[] candidate = new int[0];
+		int[] typed = new int[0];
+	}
+
+	private final ThreadLocal<Alignment> alignments = new ThreadLocal<Alignment>();
+
+	private Alignment alignment(int n, int m) {
+		Alignment a = alignments.get();
+		if (a == null) {
+			a = new Alignment();
+			alignments.set(a);
+		}
+		if (a.prev.length < m + 1) {
+			a.prev2 = new double[m + 1];
+			a.prev = new double[m + 1];
+			a.cur = new double[m + 1];
+		}
+		if (a.candidate.length < n + 1) {
+			a.candidate = new int[n + 1];
+		}
+		if (a.typed.length < m + 1) {
+			a.typed = new int[m + 1];
+		}
+		return a;
+	}
+
+	/*
+	 * Weighted Damerau-Levenshtein (optimal string alignment) of "#" + candidate with
+	 * "#" + typed, maximizing the sum of the edit costs, where matching chars cost
+	 * nothing. The edits are named as in the count tables: a deletion or insertion by
+	 * the candidate char before it and the char deleted or inserted, a substitution
+	 * by the candidate char and the typed one, a transposition by the two candidate
+	 * chars. Only cells within k of the diagonal are filled, where k is 2 or the
+	 * difference in length if greater, so the cost is O(k * n). The rows are reused
+	 * between calls on the same thread.
+	 */
+	private double align(String candidate, String typed) {
+		int n = candidate.length();
+		int m = typed.length();
+		int k = Math.max(MAX_ALIGNED_EDITS, Math.abs(n - m));
+		int size = chars.length + 1;
+		int sub = SUB * size * size, del = DEL * size * size, ins = INS * size * size,
+				trans = TRANS * size * size;
+		Alignment a = alignment(n, m);
+		int[] x = a.candidate;
+		int[] y = a.typed;
+		x[0] = index('#');
+		y[0] = x[0];
+		for (int i = 1; i <= n; i++) {
+			x[i] = index(candidate.charAt(i - 1));
+		}
+		for (int j = 1; j <= m; j++) {
+			y[j] = index(typed.charAt(j - 1));
+		}
+		double[] prev2 = a.prev2;
+		double[] prev = a.prev;
+		double[] cur = a.cur;
+		double inf = Double.NEGATIVE_INFINITY;
+
+		int hi = Math.min(m, k);
+		prev[0] = 0;
+		for (int j = 1; j <= hi; j++) {
+			prev[j] = prev[j - 1] + costs[ins + x[0] * size + y[j]];
+		}
+		if (hi < m) {
+			prev[hi + 1] = inf;
+		}
+		for (int i = 1; i <= n; i++) {
+			int lo = Math.max(0, i - k);
+			hi = Math.min(m, i + k);
+			if (lo > 0) {
+				cur[lo - 1] = inf;
+			}
+			int xi = x[i] * size;
+			int deletion = del + x[i - 1] * size + x[i];
+			char ci = candidate.charAt(i - 1);
+			for (int j = lo; j <= hi; j++) {
+				// Deletion of candidate char i
+				double best = prev[j] + costs[deletion];
+				if (j > 0) {
+					// Insertion of typed char j after candidate char i
+					double v = cur[j - 1] + costs[ins + xi + y[j]];
+					if (v > best) {
+						best = v;
+					}
+					// Match or substitution
+					char cj = typed.charAt(j - 1);
+					v = ci == cj ? prev[j - 1] : prev[j - 1] + costs[sub + xi + y[j]];
+					if (v > best) {
+						best = v;
+					}
+					if (i > 1 && j > 1 && candidate.charAt(i - 2) == cj && ci == typed.charAt(j - 2)) {
+						v = prev2[j - 2] + costs[trans + x[i - 1] * size + x[i]];
+						if (v > best) {
+							best = v;
+						}
+					}
+				}
+				cur[j] = best;
+			}
+			if (hi < m) {
+				cur[hi + 1] = inf;
+			}
+			double[] t = prev2;
+			prev2 = prev;
+			prev = cur;
+			cur = t;
+		}
+		return prev[m];
+	}
+
+	// Find the first edit that turns "#" + candidate into "#" + typed. It is returned
+	// as its type plus the position i of the first difference, counting the "#",
+	// packed as i << 2 | type.
+	private static long findEdit(String candidate, String typed) {
+		int actualLength = candidate.length() + 1;
+		int typedLength = typed.length() + 1;
+		int i = 1;
+		while (i < Math.min(actualLength, typedLength)
+				&& candidate.charAt(i - 1) == typed.charAt(i - 1)) {
 			i++;
 		}
-		if (actual.length() < typed.length()){
-			//Insertion
-			edit.setFirst(INS);
-			edit.setSecond(actual.substring(i-1, i) + typed.substring(i,i+1));
-			return new Pair<Integer,Integer>(i-1,i);
-		} else if (actual.length() > typed.length()){
-			//Deletion
-			edit.setFirst(DEL);
-			edit.setSecond(actual.substring(i-1, i) + actual.substring(i,i+1));
-			return new Pair<Integer,Integer>(i,i-1);
-		} else if (i+1 < actual.length() && typed.charAt(i) == actual.charAt(i+1) && typed.charAt(i+1) == actual.charAt(i) ) {
-			//Transposition
-			edit.setFirst(TRANS);
-			edit.setSecond(actual.substring(i, i+1) + actual.substring(i+1,i+2));
-			return new Pair<Integer,Integer>(i+1,i+1);
+		int type;
+		if (actualLength < typedLength) {
+			type = INS;
+		} else if (actualLength > typedLength) {
+			type = DEL;
+		} else if (i + 1 < actualLength && typed.charAt(i - 1) == candidate.charAt(i)
+				&& typed.charAt(i) == candidate.charAt(i - 1)) {
+			type = TRANS;
 		} else {
-			//Substitution
-			edit.setFirst(SUB);
-			edit.setSecond(actual.substring(i, i+1)+ typed.substring(i,i+1));
-			return new Pair<Integer,Integer>(i,i);
+			type = SUB;
+		}
+		return (long) i << 2 | type;
+	}
+
+	private static int type(long edit) {
+		return (int) (edit & 3);
+	}
+
+	// The two chars that name an edit in the count tables: for an insertion or
+	// deletion the char before it and the char inserted or deleted, for a
+	// transposition the two chars of the candidate, for a substitution the
+	// candidate's char and the typed one
+	private static char firstChar(long edit, String candidate, String typed) {
+		int i = (int) (edit >>> 2);
+		return charAt(candidate, type(edit) == INS || type(edit) == DEL ? i - 1 : i);
+	}
+
+	private static char secondChar(long edit, String candidate, String typed) {
+		int i = (int) (edit >>> 2);
+		int type = type(edit);
+		if (type == INS || type == SUB) {
+			return charAt(typed, i);
 		}
+		return charAt(candidate, type == TRANS ? i + 1 : i);
+	}
+
+	// Char i of "#" + s
+	private static char charAt(String s, int i) {
+		return i == 0 ? '#' : s.charAt(i - 1);
 	}
 }
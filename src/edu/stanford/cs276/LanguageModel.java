@@ -1,106 +1,352 @@
 package edu.stanford.cs276;
 
-import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
+import edu.stanford.cs276.util.CountingVocabulary;
 import edu.stanford.cs276.util.Dictionary;
+import edu.stanford.cs276.util.FrontCodedVocabulary;
+import edu.stanford.cs276.util.IngestedInputs;
+import edu.stanford.cs276.util.LongIntLookup;
+import edu.stanford.cs276.util.LongIntMap;
+import edu.stanford.cs276.util.LongIntRuns;
+import edu.stanford.cs276.util.MappedLongIntMap;
+import edu.stanford.cs276.util.MappedVocabulary;
+import edu.stanford.cs276.util.ModelFile;
+import edu.stanford.cs276.util.QuantizedBigrams;
+import edu.stanford.cs276.util.TrigramTable;
+import edu.stanford.cs276.util.Vocabulary;
 
 
-public class LanguageModel implements Serializable {
+public class LanguageModel {
 
-	private static LanguageModel lm_;
-	private Dictionary _unigramCounts;
-	private Dictionary _bigramCounts;
+	// Words are interned to ids by the unigram vocabulary; bigrams are keyed by the
+	// two ids packed into one long (see bigramKey). A freshly built model holds
+	// these in heap tables, a loaded one reads them in place from the mapped file.
+	private final Vocabulary _unigramCounts;
+	private final LongIntLookup _bigramCounts;
+	// Log probabilities precomputed by save(), or null to compute them from the
+	// counts: per word id log P(w) and log(LAMBDA * P(w)), the score of w followed by
+	// an unseen word, and per bigram table slot the interpolated log P(w2 | w1)
+	private final DoubleBuffer _logUnigrams;
+	private final DoubleBuffer _logUnseenBigrams;
+	private final DoubleBuffer _logBigrams;
+	// A model saved with quantized bigrams has no bigram counts, only these, and
+	// reads its unigram tables from the log probability section
+	private final QuantizedBigrams _quantizedBigrams;
+	// A model saved with trigrams scores each word after the second by them
+	private final TrigramTable _trigrams;
+	// CRC32 of the vocabulary section the model was read with, or 0 if it was not
+	// read from a file
+	private final long _vocabularyChecksum;
+	// The largest log P(w), worked out on first use
+	private volatile double _maxLogUnigram = Double.NaN;
+	// Queries read only the fields above, which never change once the model is made:
+	// a changed model is a new one. Those below only say what save() writes.
+	// Bits save() quantizes the bigram log probabilities to, or 0 to keep the counts
+	private int _quantizeBits;
+	// The corpus files counted and how much of each, or null if not known
+	private IngestedInputs _inputs;
+	// Trigram counts merged into one run by countTrigrams() for save() to write, and
+	// the fewest times a trigram must be seen to be kept
+	private LongIntRuns _trigramRuns;
+	private int _minTrigramCount;
 	private static final double LAMBDA = 0.01;
+	// Stupid backoff: a trigram never seen scores ALPHA times its bigram
+	private static final double LOG_ALPHA = Math.log(0.4);
 	
 	
-	// Do not call constructor directly since this is a Singleton
-	private LanguageModel(String corpusFilePath) throws Exception {
-		_bigramCounts = new Dictionary();
-		_unigramCounts = new Dictionary();
-		constructDictionaries(corpusFilePath);
-		save();
+	LanguageModel(Vocabulary unigramCounts, LongIntLookup bigramCounts) {
+		this(unigramCounts, bigramCounts, null, null, null, 0);
 	}
 
+	// logTables holds log P(w), log(LAMBDA * P(w)) and log P(w2 | w1) as found by
+	// logProbabilities, or is null to compute them from the counts
+	private LanguageModel(Vocabulary unigramCounts, LongIntLookup bigramCounts,
+			QuantizedBigrams quantizedBigrams, DoubleBuffer[] logTables, TrigramTable trigrams,
+			long vocabularyChecksum) {
+		_unigramCounts = unigramCounts;
+		_bigramCounts = bigramCounts;
+		_quantizedBigrams = quantizedBigrams;
+		_logUnigrams = logTables != null ? logTables[0] : null;
+		_logUnseenBigrams = logTables != null ? logTables[1] : null;
+		_logBigrams = logTables != null ? logTables[2] : null;
+		_trigrams = trigrams;
+		_vocabularyChecksum = vocabularyChecksum;
+	}
+
+	// The log probability tables written by save() for these counts, or null if they
+	// were computed with another LAMBDA
+	private static DoubleBuffer[] logProbabilities(ByteBuffer section, Vocabulary unigramCounts,
+			LongIntLookup bigramCounts) {
+		ByteBuffer buf = section.duplicate();
+		double lambda = buf.getDouble();
+		int words = buf.getInt();
+		int slots = buf.getInt();
+		int expected = bigramCounts != null ? bigramCounts.tableSize() + 1 : 0;
+		if (lambda != LAMBDA || words != unigramCounts.size() || slots != expected) {
+			return null;
+		}
+		return new DoubleBuffer[] {
+				ModelFile.slice(buf, 8 * words).asDoubleBuffer(),
+				ModelFile.slice(buf, 8 * words).asDoubleBuffer(),
+				ModelFile.slice(buf, 8 * slots).asDoubleBuffer() };
+	}
 
 	/**
-	 * Reads in corpus and constructs dictionaries of unigram and bigram counts.
-	 * @param corpusFilePath
-	 * @throws Exception
+	 * Reads in corpus and constructs dictionaries of unigram and bigram counts, using
+	 * the given number of threads (see CorpusCounter).
 	 */
-	public void constructDictionaries(String corpusFilePath)
+	private static LanguageModel constructDictionaries(String corpusFilePath, int threads)
 			throws Exception {
 
 		System.out.println("Constructing dictionaries...");
-		File dir = new File(corpusFilePath);
-		for (File file : dir.listFiles()) {
-			if (".".equals(file.getName()) || "..".equals(file.getName())) {
-				continue; // Ignore the self and parent aliases.
-			}
-			System.out.printf("Reading data file %s ...\n", file.getName());
-			BufferedReader input = new BufferedReader(new FileReader(file));
-			String line = null;
-			while ((line = input.readLine()) != null) {
-				String[] words = line.trim().split(" ");
-				for (int i = 0; i < words.length; i++) {
-					// Put word in dictionary
-					_unigramCounts.add(words[i]);
-					
-					if (i + 1 < words.length) {
-						_bigramCounts.add(words[i] + " " + words[i + 1]);
-					}
-				}
+		long startTime = System.currentTimeMillis();
+		Dictionary unigramCounts = new Dictionary();
+		LongIntMap bigramCounts = new LongIntMap();
+		IngestedInputs inputs = new IngestedInputs();
+		countNewInput(corpusFilePath, threads, inputs, unigramCounts, bigramCounts);
+		LanguageModel lm = new LanguageModel(unigramCounts, bigramCounts);
+		lm._inputs = inputs;
+		System.out.printf("Done (%d ms, %d threads).\n", System.currentTimeMillis() - startTime, threads);
+		return lm;
+	}
+
+	// Counts what the corpus files hold beyond what inputs records, and records it.
+	// Returns the number of files that had anything new.
+	private static int countNewInput(String corpusFilePath, int threads, IngestedInputs inputs,
+			Dictionary unigramCounts, LongIntMap bigramCounts) throws Exception {
+		List<File> files = new ArrayList<File>();
+		List<Long> starts = new ArrayList<Long>();
+		List<Long> ends = new ArrayList<Long>();
+		for (File file : CorpusCounter.corpusFiles(corpusFilePath)) {
+			long counted = inputs.counted(file);
+			long length = file.length();
+			if (length > counted) {
+				files.add(file);
+				starts.add(counted);
+				ends.add(length);
 			}
-			input.close();
 		}
-		System.out.println("Done.");
+		long[] from = new long[files.size()];
+		long[] to = new long[files.size()];
+		for (int i = 0; i < from.length; i++) {
+			from[i] = starts.get(i);
+			to[i] = ends.get(i);
+		}
+		new CorpusCounter(threads).count(files, from, to, unigramCounts, bigramCounts);
+		for (int i = 0; i < from.length; i++) {
+			inputs.record(files.get(i), to[i]);
+		}
+		return files.size();
+	}
+
+	/**
+	 * Loads the model saved by save(), adds the counts of whatever the corpus files
+	 * hold beyond the inputs the model was counted from, and returns the result
+	 * without saving it. Only the new bytes are read, but the whole model is copied
+	 * and written again.
+	 */
+	public static LanguageModel update(String corpusFilePath, int threads) throws Exception {
+		System.out.println("Updating dictionaries...");
+		long startTime = System.currentTimeMillis();
+		LanguageModel saved = read(Config.languageModelFile);
+		if (saved._inputs == null) {
+			throw new Exception("The saved language model does not record the corpus files it was"
+					+ " counted from, as when it was pruned, quantized or has trigrams; rebuild it"
+					+ " without --update");
+		}
+		Dictionary newUnigrams = new Dictionary();
+		LongIntMap newBigrams = new LongIntMap();
+		int newFiles = countNewInput(corpusFilePath, threads, saved._inputs, newUnigrams,
+				newBigrams);
+
+		// Copy the saved counts to the heap, keeping the word ids, then add the new ones
+		Vocabulary vocab = saved._unigramCounts;
+		Dictionary unigramCounts = new Dictionary(vocab.size() + newUnigrams.size());
+		for (int id = 0; id < vocab.size(); id++) {
+			unigramCounts.add(vocab.term(id), vocab.count(id));
+		}
+		long[] keys = saved._bigramCounts.sortedKeys();
+		LongIntMap bigramCounts = new LongIntMap(keys.length + newBigrams.size());
+		for (long key : keys) {
+			bigramCounts.add(key, saved._bigramCounts.get(key));
+		}
+		CorpusCounter.merge(newUnigrams, newBigrams, unigramCounts, bigramCounts);
+
+		LanguageModel lm = new LanguageModel(unigramCounts, bigramCounts);
+		lm._inputs = saved._inputs;
+		System.out.printf("Done (%d ms, %d new or grown files, %d words).\n",
+				System.currentTimeMillis() - startTime, newFiles, unigramCounts.size());
+		return lm;
 	}
 	
+	// The unigram vocabulary; word ids index into it
+	Vocabulary vocabulary() {
+		return _unigramCounts;
+	}
+
+	// CRC32 of the saved vocabulary this model was read with, or 0 if it was not read
+	// from a file. Anything keyed by its word ids is only valid for the same value.
+	long vocabularyChecksum() {
+		return _vocabularyChecksum;
+	}
+
+	/**
+	 * Returns a model that shares these tables and also counts the vocabulary lookups
+	 * made through it, per thread (see lookups()). Each lookup then also updates a
+	 * thread-local counter, so this is off unless asked for. This model is left as it
+	 * is.
+	 */
+	public LanguageModel withLookupsCounted() {
+		if (_unigramCounts instanceof CountingVocabulary) {
+			return this;
+		}
+		LanguageModel lm = new LanguageModel(new CountingVocabulary(_unigramCounts),
+				_bigramCounts, _quantizedBigrams, logTables(), _trigrams, _vocabularyChecksum);
+		lm.copySaveSettings(this);
+		return lm;
+	}
+
+	/**
+	 * Vocabulary lookups the current thread has made through this model, or 0 if it
+	 * does not count them (see withLookupsCounted()).
+	 */
+	public long lookups() {
+		return _unigramCounts instanceof CountingVocabulary
+				? ((CountingVocabulary) _unigramCounts).lookups() : 0;
+	}
+
+	/**
+	 * Packs the ids of w1 and w2 into the key used by the bigram table.
+	 */
+	static long bigramKey(int id1, int id2) {
+		return ((long) id1 << 32) | (id2 & 0xffffffffL);
+	}
+
 	/**
 	 * Computes the probability of a term as count(term)/termCount
-	 * @param w
+	 * @param id - unigram id of the term, or -1 if it is not in the dictionary
 	 * @return
 	 */
-	private double unigramProbability(String w) {
-		return (double) _unigramCounts.count(w) / _unigramCounts.termCount();
+	double unigramProbability(int id) {
+		return (double) _unigramCounts.count(id) / _unigramCounts.termCount();
 	}
 	
+	/**
+	 * Returns log P(term), or negative infinity for id -1
+	 */
+	double logUnigramProbability(int id) {
+		if (_logUnigrams != null) {
+			return id < 0 ? Double.NEGATIVE_INFINITY : _logUnigrams.get(id);
+		}
+		return Math.log(unigramProbability(id));
+	}
+
 	/**
 	 * Returns the log interpolated conditional probability of w2 | w1
-	 * @param bigram
+	 * @param id1 - unigram id of w1
+	 * @param id2 - unigram id of w2
 	 * @return
 	 */
-	private double bigramProbability(String w1, String w2) {
-		double unigramProbability = unigramProbability(w1); // P(w2)
-		double bigramProbability =  (double) _bigramCounts.count(w1 + " " + w2) / _unigramCounts.count(w1); 			   // P(w2|w1)
+	double bigramProbability(int id1, int id2) {
+		if (_quantizedBigrams != null) {
+			int index = _quantizedBigrams.indexOf(id1, id2);
+			return index >= 0 ? _quantizedBigrams.logProbability(index) : _logUnseenBigrams.get(id1);
+		}
+		if (_logBigrams != null) {
+			int slot = _bigramCounts.slotOf(bigramKey(id1, id2));
+			return slot >= 0 ? _logBigrams.get(slot) : _logUnseenBigrams.get(id1);
+		}
+		double unigramProbability = unigramProbability(id1); // P(w2)
+		double bigramProbability =  (double) _bigramCounts.get(bigramKey(id1, id2)) / _unigramCounts.count(id1); 			   // P(w2|w1)
 
 		return Math.log(LAMBDA * unigramProbability + (1 - LAMBDA) * bigramProbability);
 	}
 	
+	/**
+	 * Returns the log score of w3 after w1 w2 by stupid backoff: log(count(w1 w2 w3)
+	 * / count(w1 w2)) if the trigram was kept, else log ALPHA plus the bigram score of
+	 * w3 after w2. Like the bigram score it is at most 0, but the scores of all w3 do
+	 * not add up to 1.
+	 */
+	double trigramProbability(int id1, int id2, int id3) {
+		int context = _trigrams.contextOf(id1, id2);
+		if (context >= 0) {
+			int index = _trigrams.indexOf(context, id3);
+			if (index >= 0) {
+				return Math.log((double) _trigrams.count(index) / _trigrams.contextCount(context));
+			}
+		}
+		return LOG_ALPHA + bigramProbability(id2, id3);
+	}
+
 	/**
 	 * Returns the probability of a sequence of words (a query) given the language model.
+	 * Words are the space separated tokens of the trimmed query, as with
+	 * query.trim().split(" "), but they are looked up in place. A model saved with
+	 * trigrams scores each word after the second by trigramProbability.
 	 * @param words
 	 * @return
 	 */
 	public double queryProbability(String query) {
-		String[] words = query.trim().split(" ");
-		double p = Math.log(unigramProbability(words[0]));
-		for (int i = 0; i < words.length - 1; i++) {
+		int end = trimEnd(query);
+		int start = trimStart(query, end);
+		int tokenEnd = tokenEnd(query, start, end);
+		int prevId = _unigramCounts.id(query, start, tokenEnd);
+		int prevPrevId = -1;
+		double p = logUnigramProbability(prevId);
+		while (tokenEnd < end) {
+			start = tokenEnd + 1;
+			tokenEnd = tokenEnd(query, start, end);
+			int id = _unigramCounts.id(query, start, tokenEnd);
 			// Assign 0 probability to queries with words not in dictionary.
-			if (_unigramCounts.count(words[i]) == 0 || _unigramCounts.count(words[i + 1]) == 0) {
+			if (prevId < 0 || id < 0) {
 				return Double.NEGATIVE_INFINITY;
 			}
-			p += bigramProbability(words[i], words[i+1]);
+			if (_trigrams != null && prevPrevId >= 0) {
+				p += trigramProbability(prevPrevId, prevId, id);
+			} else {
+				p += bigramProbability(prevId, id);
+			}
+			prevPrevId = prevId;
+			prevId = id;
 		}
 		
 		return p;
 	}
+
+	/**
+	 * Returns an upper bound on queryProbability(query) that looks up the first word
+	 * only: each later word adds a log conditional probability, which is at most 0.
+	 */
+	double queryProbabilityBound(String query) {
+		int end = trimEnd(query);
+		int start = trimStart(query, end);
+		return logUnigramProbability(_unigramCounts.id(query, start, tokenEnd(query, start, end)));
+	}
+
+	/**
+	 * Returns an upper bound on queryProbability of any query: log P(w) of the most
+	 * frequent word.
+	 */
+	double maxQueryProbability() {
+		double max = _maxLogUnigram;
+		if (Double.isNaN(max)) {
+			max = Double.NEGATIVE_INFINITY;
+			for (int id = 0; id < _unigramCounts.size(); id++) {
+				max = Math.max(max, logUnigramProbability(id));
+			}
+			_maxLogUnigram = max;
+		}
+		return max;
+	}
 	
 	/**
 	 * Returns true if all words in the query are in the dictionary.
@@ -108,13 +354,7 @@ public class LanguageModel implements Serializable {
 	 * @return
 	 */
 	public boolean isValidQuery(String query) {
-		String[] words = query.trim().split(" ");
-		for (String word : words) {
-			if (_unigramCounts.count(word) == 0) {
-				return false;
-			}
-		}
-		return true;
+		return hasNOrFewerInvalidWords(query, 0);
 	}
 	
 	/**
@@ -124,47 +364,447 @@ public class LanguageModel implements Serializable {
 	 */
 	public boolean hasNOrFewerInvalidWords(String query, int n) {
 		int errorCount = 0;
-		String[] words = query.trim().split(" ");
-		for (String word : words) {
-			if (_unigramCounts.count(word) == 0) {
+		int end = trimEnd(query);
+		int start = trimStart(query, end);
+		while (true) {
+			int tokenEnd = tokenEnd(query, start, end);
+			if (_unigramCounts.id(query, start, tokenEnd) < 0) {
 				errorCount++;
 			}
 			if (errorCount > n) {
 				return false;
 			}
+			if (tokenEnd == end) {
+				break;
+			}
+			start = tokenEnd + 1;
 		}
 		
 		return true;
 	}
+
+	// Bounds of the query after String.trim(), which strips every char <= ' '. Words
+	// are split on single spaces within them. EditedQuery splits its edited queries
+	// the same way.
+	static int trimEnd(CharSequence query) {
+		int end = query.length();
+		while (end > 0 && query.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return end;
+	}
+
+	static int trimStart(CharSequence query, int end) {
+		int start = 0;
+		while (start < end && query.charAt(start) <= ' ') {
+			start++;
+		}
+		return start;
+	}
+
+	// End of the token starting at start: the next single space, or end
+	static int tokenEnd(CharSequence query, int start, int end) {
+		int i = start;
+		while (i < end && query.charAt(i) != ' ') {
+			i++;
+		}
+		return i;
+	}
 	
-	// Loads the object (and all associated data) from disk
+	// Maps the model file written by save() and reads it in place. Every call maps
+	// the file as it is now, so a model saved since is picked up.
 	public static LanguageModel load() throws Exception {
 		try {
-			if (lm_==null){
-				FileInputStream fiA = new FileInputStream(Config.languageModelFile);
-				ObjectInputStream oisA = new ObjectInputStream(fiA);
-				lm_ = (LanguageModel) oisA.readObject();
-			}
+			return read(Config.languageModelFile);
 		} catch (Exception e){
-			throw new Exception("Unable to load language model.  You may have not run build corrector");
+			throw new Exception("Unable to load language model.  You may have not run build corrector"
+					+ " (or need to run ConvertModels on a model saved by an older version)", e);
+		}
+	}
+
+	static LanguageModel read(String path) throws Exception {
+		ModelFile file = ModelFile.open(path, ModelFile.LANGUAGE_MODEL);
+		Vocabulary vocab = FrontCodedVocabulary.open(file.section(0));
+		LongIntLookup bigrams = null;
+		QuantizedBigrams quantized = null;
+		DoubleBuffer[] logTables = null;
+		if (QuantizedBigrams.isQuantized(file.section(1))) {
+			quantized = new QuantizedBigrams(file.section(1));
+			logTables = logProbabilities(file.section(2), vocab, null);
+			if (logTables == null) {
+				throw new Exception("The quantized bigrams of " + path
+						+ " were computed with another LAMBDA; rebuild the model");
+			}
+		} else {
+			bigrams = new MappedLongIntMap(file.section(1));
+			// Files saved before the log probability tables existed have two sections,
+			// and before the record of inputs three
+			if (file.sectionCount() > 2) {
+				logTables = logProbabilities(file.section(2), vocab, bigrams);
+			}
 		}
-		return lm_;
+		TrigramTable trigrams = null;
+		IngestedInputs inputs = null;
+		if (file.sectionCount() > 3) {
+			if (TrigramTable.isTrigrams(file.section(3))) {
+				trigrams = new TrigramTable(file.section(3));
+			} else {
+				inputs = new IngestedInputs(file.section(3));
+			}
+		}
+		LanguageModel lm = new LanguageModel(vocab, bigrams, quantized, logTables, trigrams,
+				ModelFile.checksum(file.section(0)));
+		lm._inputs = inputs;
+		return lm;
 	}
 	
-	// Saves the object (and all associated data) to disk
+	// Saves the model to disk in the binary model file format:
+	// section 0 is the sorted vocabulary, section 1 the bigram table, section 2
+	// the log probability tables and section 3, if the inputs are known, the
+	// IngestedInputs record of the corpus files counted:
+	//   double LAMBDA, int vocabulary size V, int bigram table size T + 1
+	//   double[V]      log P(w) by word id
+	//   double[V]      log(LAMBDA * P(w)), the score of w followed by an unseen word
+	//   double[T + 1]  log P(w2 | w1) by bigram table slot
+	// After quantizeBigrams(), section 1 is a QuantizedBigrams table instead, T + 1
+	// is 0, and there is no IngestedInputs section. After countTrigrams(), section 3
+	// is the TrigramTable instead.
 	public void save() throws Exception{
-		FileOutputStream saveFile = new FileOutputStream(Config.languageModelFile);
-		ObjectOutputStream save = new ObjectOutputStream(saveFile);
-		save.writeObject(this);
-		save.close();
+		save(Config.languageModelFile);
+	}
+
+	void save(String path) throws Exception {
+		if (_bigramCounts == null) {
+			throw new Exception("A model with quantized bigrams has no counts to save again;"
+					+ " rebuild it from the corpus");
+		}
+		boolean quantize = _quantizeBits > 0;
+		ModelFile.Writer writer = new ModelFile.Writer(path, ModelFile.LANGUAGE_MODEL,
+				(_inputs != null && !quantize) || _trigramRuns != null ? 4 : 3);
+		try {
+			DataOutputStream out = writer.beginSection();
+			int[] remap = FrontCodedVocabulary.write(_unigramCounts, out);
+
+			// Word ids change with the sort, so rekey the bigrams. They are inserted in
+			// key order, so the same counts always give the same file, however they were
+			// counted.
+			long[] keys = _bigramCounts.sortedKeys();
+			LongIntMap rekeyed = new LongIntMap(keys.length);
+			for (long key : keys) {
+				rekeyed.add(bigramKey(remap[(int) (key >>> 32)], remap[(int) key]),
+						_bigramCounts.get(key));
+			}
+			LongIntMap bigrams = new LongIntMap(keys.length);
+			for (long key : rekeyed.sortedKeys()) {
+				bigrams.add(key, rekeyed.get(key));
+			}
+			int[] counts = new int[remap.length];
+			for (int id = 0; id < remap.length; id++) {
+				counts[remap[id]] = _unigramCounts.count(id);
+			}
+			double termCount = _unigramCounts.termCount();
+			if (quantize) {
+				long[] sorted = bigrams.sortedKeys();
+				double[] logBigrams = new double[sorted.length];
+				for (int i = 0; i < sorted.length; i++) {
+					logBigrams[i] = logBigramProbability(counts[(int) (sorted[i] >>> 32)],
+							bigrams.get(sorted[i]), termCount);
+				}
+				double maxError = QuantizedBigrams.write(sorted, logBigrams, counts.length,
+						_quantizeBits, writer.beginSection());
+				System.out.printf(
+						"Quantized %d bigram log probabilities to %d bits, each within %.3g.\n",
+						sorted.length, _quantizeBits, maxError);
+				writeLogProbabilities(writer.beginSection(), counts, termCount, null);
+			} else {
+				bigrams.write(writer.beginSection());
+				writeLogProbabilities(writer.beginSection(), counts, termCount, bigrams);
+				if (_inputs != null) {
+					_inputs.write(writer.beginSection());
+				}
+			}
+			if (_trigramRuns != null) {
+				writeTrigrams(_trigramRuns, counts.length, _minTrigramCount, writer.beginSection());
+			}
+			writer.close();
+		} finally {
+			writer.abort();
+		}
+	}
+
+	/**
+	 * Counts the trigrams of the corpus the model was built from, for save() to store
+	 * them with it; the saved model then scores each word after the second by
+	 * trigramProbability. Counts are spilled as sorted runs to tempDir (null for the
+	 * default temporary directory) whenever memoryBudget bytes of them fill up, as by
+	 * createOutOfCore, and trigrams seen fewer than minCount times are not saved. The
+	 * vocabulary may hold at most TrigramTable.MAX_WORDS words, and the saved model
+	 * cannot be updated.
+	 */
+	public void countTrigrams(String corpusFilePath, int threads, long memoryBudget, File tempDir,
+			int minCount) throws Exception {
+		if (_bigramCounts == null) {
+			throw new Exception("A model with quantized bigrams has no counts to save again;"
+					+ " rebuild it from the corpus");
+		}
+		if (_trigramRuns != null) {
+			_trigramRuns.delete();
+		}
+		_trigramRuns = countTrigramRuns(CorpusCounter.corpusFiles(corpusFilePath), threads,
+				memoryBudget, tempDir, _unigramCounts);
+		_minTrigramCount = minCount;
+		_inputs = null;
+	}
+
+	// Counts the trigrams of the files into runs merged into one, keyed by the word ids
+	// of the sorted vocabulary, as save() and createOutOfCore write it
+	private static LongIntRuns countTrigramRuns(List<File> files, int threads, long memoryBudget,
+			File tempDir, Vocabulary vocab) throws Exception {
+		if (vocab.size() > TrigramTable.MAX_WORDS) {
+			throw new Exception("Trigrams can be counted for at most " + TrigramTable.MAX_WORDS
+					+ " words, not " + vocab.size());
+		}
+		System.out.println("Counting trigrams...");
+		long startTime = System.currentTimeMillis();
+		LongIntRuns runs = new LongIntRuns(tempDir);
+		try {
+			new CorpusCounter(threads).countTrigrams(files, memoryBudget, vocab,
+					MappedVocabulary.sortedIds(vocab), runs);
+			int runCount = runs.runCount();
+			long spilled = runs.spilledEntries();
+			long trigramCount = runs.merge(1);
+			System.out.printf("Done (%d ms, %d runs of %d entries merged into %d trigrams).\n",
+					System.currentTimeMillis() - startTime, runCount, spilled, trigramCount);
+			return runs;
+		} catch (Exception e) {
+			runs.delete();
+			throw e;
+		}
+	}
+
+	private static void writeTrigrams(LongIntRuns runs, int words, int minCount,
+			DataOutputStream out) throws Exception {
+		int size = TrigramTable.write(runs, words, minCount, out);
+		System.out.printf("Saved %d trigrams seen at least %d times.\n", size, minCount);
 	}
 	
+	// Writes the log probability tables section for the counts of the sorted
+	// vocabulary and the bigram table written before it, or null if the bigrams
+	// were quantized. Same arithmetic as unigramProbability and bigramProbability,
+	// so the tables give exactly the scores computed from the counts.
+	private static void writeLogProbabilities(DataOutputStream out, int[] counts,
+			double termCount, LongIntLookup bigrams) throws Exception {
+		out.writeDouble(LAMBDA);
+		out.writeInt(counts.length);
+		out.writeInt(bigrams != null ? bigrams.tableSize() + 1 : 0);
+		for (int count : counts) {
+			out.writeDouble(Math.log(count / termCount));
+		}
+		for (int count : counts) {
+			out.writeDouble(logBigramProbability(count, 0, termCount));
+		}
+		if (bigrams == null) {
+			return;
+		}
+		// Slot tableSize() is the key 0, which is also what free slots hold
+		boolean hasZeroKey = bigrams.slotOf(0) >= 0;
+		for (int slot = 0; slot <= bigrams.tableSize(); slot++) {
+			long key = bigrams.keyAt(slot);
+			if (key == 0 && (slot < bigrams.tableSize() || !hasZeroKey)) {
+				out.writeDouble(0);
+				continue;
+			}
+			out.writeDouble(logBigramProbability(counts[(int) (key >>> 32)], bigrams.valueAt(slot),
+					termCount));
+		}
+	}
+
+	// log P(w2 | w1) for count(w1) and count(w1 w2), as bigramProbability works it out
+	private static double logBigramProbability(int count1, int count, double termCount) {
+		return Math.log(LAMBDA * (count1 / termCount) + (1 - LAMBDA) * ((double) count / count1));
+	}
+
+	/**
+	 * Builds the model of a corpus with the bigram counts kept out of the heap, and
+	 * saves and maps it. Each counting thread spills sorted runs of its counts to
+	 * tempDir (null for the default temporary directory) whenever its share of
+	 * memoryBudget bytes fills up; the runs are then merged, and the bigram table is
+	 * built in a mapped file, so the heap holds little more than the vocabulary
+	 * however large the corpus. Bigrams seen fewer than minCount times are dropped,
+	 * as by withBigramsPruned. The file written is the one create() and save() give.
+	 */
+	public static LanguageModel createOutOfCore(String corpusFilePath, int threads,
+			long memoryBudget, File tempDir, int minCount) throws Exception {
+		return createOutOfCore(corpusFilePath, threads, memoryBudget, tempDir, minCount, 0);
+	}
+
+	/**
+	 * Builds the model out of core as above, and with trigrams seen at least
+	 * minTrigramCount times, counted the same way, unless that is 0. The file written
+	 * is the one countTrigrams() and save() give.
+	 */
+	public static LanguageModel createOutOfCore(String corpusFilePath, int threads,
+			long memoryBudget, File tempDir, int minCount, int minTrigramCount) throws Exception {
+		System.out.println("Constructing dictionaries out of core...");
+		long startTime = System.currentTimeMillis();
+		List<File> files = CorpusCounter.corpusFiles(corpusFilePath);
+		Dictionary unigramCounts = new Dictionary();
+		LongIntRuns runs = new LongIntRuns(tempDir);
+		try {
+			new CorpusCounter(threads).countSpilling(files, memoryBudget, unigramCounts, runs);
+			int runCount = runs.runCount();
+			long spilled = runs.spilledEntries();
+			long bigramCount = runs.merge(minCount);
+			System.out.printf("Merged %d runs of %d entries in all into %d bigrams.\n", runCount,
+					spilled, bigramCount);
+
+			File table = File.createTempFile("bigrams", ".table", tempDir);
+			try {
+				LongIntRuns.Cursor entries = runs.cursor();
+				MappedLongIntMap bigrams;
+				try {
+					bigrams = MappedLongIntMap.build(entries, bigramCount, table);
+				} finally {
+					entries.close();
+				}
+				runs.delete();
+
+				LongIntRuns trigrams = null;
+				if (minTrigramCount > 0) {
+					trigrams = countTrigramRuns(files, threads, memoryBudget, tempDir, unigramCounts);
+				}
+				ModelFile.Writer writer = new ModelFile.Writer(Config.languageModelFile,
+						ModelFile.LANGUAGE_MODEL, minCount > 1 && trigrams == null ? 3 : 4);
+				try {
+					int[] remap = FrontCodedVocabulary.write(unigramCounts, writer.beginSection());
+					copy(table, writer.beginSection());
+					int[] counts = new int[remap.length];
+					for (int id = 0; id < remap.length; id++) {
+						counts[remap[id]] = unigramCounts.count(id);
+					}
+					writeLogProbabilities(writer.beginSection(), counts, unigramCounts.termCount(),
+							bigrams);
+					if (trigrams != null) {
+						try {
+							writeTrigrams(trigrams, counts.length, minTrigramCount,
+								writer.beginSection());
+						} finally {
+							trigrams.delete();
+						}
+					} else if (minCount <= 1) {
+						IngestedInputs inputs = new IngestedInputs();
+						for (File file : files) {
+							inputs.record(file, file.length());
+						}
+						inputs.write(writer.beginSection());
+					}
+					writer.close();
+				} finally {
+					writer.abort();
+				}
+			} finally {
+				table.delete();
+			}
+		} finally {
+			runs.delete();
+		}
+		System.out.printf("Done (%d ms, %d threads).\n", System.currentTimeMillis() - startTime,
+				threads);
+		return read(Config.languageModelFile);
+	}
+
+	private static void copy(File file, DataOutputStream out) throws Exception {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
 	// Creates a new lm object from a corpus
 	public static LanguageModel create(String corpusFilePath) throws Exception {
-		if(lm_ == null ){
-			lm_ = new LanguageModel(corpusFilePath);
+		return create(corpusFilePath, Runtime.getRuntime().availableProcessors());
+	}
+
+	// Creates a new lm object from a corpus, counting with the given number of threads,
+	// and saves it
+	public static LanguageModel create(String corpusFilePath, int threads) throws Exception {
+		LanguageModel lm = constructDictionaries(corpusFilePath, threads);
+		lm.save();
+		return lm;
+	}
+
+	/**
+	 * Creates a new lm object from a corpus, keeping only the bigrams seen at least
+	 * minCount times, which are the only ones ever held exactly in memory (see
+	 * CorpusCounter.countFrequentBigrams). The model is not saved.
+	 */
+	public static LanguageModel createApproximate(String corpusFilePath, int threads, int width,
+			int depth, int minCount) throws Exception {
+		System.out.println("Constructing dictionaries approximately...");
+		long startTime = System.currentTimeMillis();
+		Dictionary unigramCounts = new Dictionary();
+		LongIntMap bigramCounts = new LongIntMap();
+		new CorpusCounter(threads).countFrequentBigrams(CorpusCounter.corpusFiles(corpusFilePath),
+				width, depth, minCount, unigramCounts, bigramCounts);
+		int counted = bigramCounts.size();
+		LanguageModel lm = new LanguageModel(unigramCounts, bigramCounts)
+				.withBigramsPruned(minCount);
+		System.out.printf("Done (%d ms, %d threads, %d bigrams counted exactly, %d kept).\n",
+				System.currentTimeMillis() - startTime, threads, counted,
+				lm._bigramCounts.size());
+		return lm;
+	}
+
+	/**
+	 * Makes save() store the bigram log probabilities quantized to bits (8 or 16)
+	 * bits in a sorted QuantizedBigrams table rather than the counts, which takes a
+	 * fraction of the space. Each is then off by at most the QuantizedBigrams
+	 * maxError(), and the saved model cannot be updated.
+	 */
+	public void quantizeBigrams(int bits) {
+		if (bits != 8 && bits != 16) {
+			throw new IllegalArgumentException("Bigrams quantize to 8 or 16 bits, not " + bits);
 		}
-		return lm_;
+		_quantizeBits = bits;
+	}
+
+	/**
+	 * Returns a model without the bigrams seen fewer than minCount times, which it
+	 * scores as unseen. A pruned model cannot be updated, since the dropped counts are
+	 * lost. This model is left as it is.
+	 */
+	public LanguageModel withBigramsPruned(int minCount) {
+		LongIntMap kept = new LongIntMap();
+		for (long key : _bigramCounts.sortedKeys()) {
+			int count = _bigramCounts.get(key);
+			if (count >= minCount) {
+				kept.add(key, count);
+			}
+		}
+		LanguageModel lm = new LanguageModel(_unigramCounts, kept);
+		lm.copySaveSettings(this);
+		lm._inputs = null;
+		return lm;
+	}
+
+	// This model's log probability tables, or null if it has none
+	private DoubleBuffer[] logTables() {
+		return _logUnigrams != null
+				? new DoubleBuffer[] { _logUnigrams, _logUnseenBigrams, _logBigrams } : null;
+	}
+
+	// Makes save() write this model as from would
+	private void copySaveSettings(LanguageModel from) {
+		_quantizeBits = from._quantizeBits;
+		_inputs = from._inputs;
+		_trigramRuns = from._trigramRuns;
+		_minTrigramCount = from._minTrigramCount;
 	}
 	
 }
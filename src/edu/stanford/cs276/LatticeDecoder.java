@@ -0,0 +1,270 @@
+package edu.stanford.cs276;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.cs276.util.IntList;
+import edu.stanford.cs276.util.Vocabulary;
+
+/**
+ * Corrects a query by decoding a lattice of per-token alternatives, as a faster
+ * alternative to SpellingCorrector's enumeration of whole candidate queries.
+ *
+ * Every typed token gets arcs for the vocabulary words within two edits of it, and
+ * adjacent tokens get arcs for the edits that delete, insert or replace the space
+ * between words. Each arc carries its edit count and the channel cost of its edits.
+ * A beam search then walks the tokens left to right; a state is the last word and
+ * the number of edits used so far, capped at two for the whole query, and its score
+ * is the bigram language model score plus the channel costs. Only the best
+ * beamWidth states are kept at each token, so the cost grows linearly with the
+ * length of the query.
+ *
+ * The channel cost of an arc is computed on the edited span alone, preceded by a
+ * space unless it starts the query, so the edit context is what the cost model
+ * would see in the whole query.
+ *
+ * Like SpellingCorrector, a decoder decodes each query with the snapshot its
+ * ModelHolder holds when the query starts.
+ */
+public class LatticeDecoder {
+	private static final int MAX_EDITS = 2;
+	private static final double MU = 1;
+
+	private final ModelHolder _models;
+	private final int _beamWidth;
+
+	/**
+	 * The engine must belong to the language model and be able to search up to two
+	 * edits away.
+	 */
+	public LatticeDecoder(LanguageModel lm, NoisyChannelModel ncm, CandidateEngine engine,
+			int beamWidth) {
+		this(new ModelHolder(new ModelSnapshot(lm, ncm, engine)), beamWidth);
+	}
+
+	/**
+	 * Decodes with whatever snapshot models holds, whose engine must be able to
+	 * search up to two edits away.
+	 */
+	public LatticeDecoder(ModelHolder models, int beamWidth) {
+		if (beamWidth < 1) {
+			throw new IllegalArgumentException("beamWidth must be at least 1");
+		}
+		_models = models;
+		_beamWidth = beamWidth;
+	}
+
+	// An alternative for the typed tokens [from, to): one or two words
+	private static class Arc {
+		final int to;
+		final int word1;
+		final int word2;
+		final int edits;
+		final double channel;
+
+		Arc(int to, int word1, int word2, int edits, double channel) {
+			this.to = to;
+			this.word1 = word1;
+			this.word2 = word2;
+			this.edits = edits;
+			this.channel = channel;
+		}
+	}
+
+	private static class State {
+		final int lastWord;
+		final int edits;
+		final double score;
+		final State back;
+		final Arc arc;
+
+		State(int lastWord, int edits, double score, State back, Arc arc) {
+			this.lastWord = lastWord;
+			this.edits = edits;
+			this.score = score;
+			this.back = back;
+			this.arc = arc;
+		}
+	}
+
+	private static final Comparator<State> BY_SCORE = new Comparator<State>() {
+		@Override
+		public int compare(State a, State b) {
+			return Double.compare(b.score, a.score);
+		}
+	};
+
+	public String bestCorrection(String query) {
+		ModelSnapshot models = _models.current();
+		if (models.engine() == null) {
+			throw new IllegalStateException("Lattice decoding needs a candidate engine");
+		}
+		LanguageModel lm = models.languageModel();
+		List<String> tokens = new ArrayList<String>();
+		for (String token : query.trim().split(" ")) {
+			if (!token.isEmpty()) {
+				tokens.add(token);
+			}
+		}
+		int n = tokens.size();
+		if (n == 0) {
+			return query.trim();
+		}
+
+		// States reaching each token boundary, keyed by last word and edits used
+		List<Map<Long, State>> reached = new ArrayList<Map<Long, State>>();
+		for (int i = 0; i <= n; i++) {
+			reached.add(new HashMap<Long, State>());
+		}
+		reached.get(0).put(key(-1, 0), new State(-1, 0, 0, null, null));
+		for (int i = 0; i < n; i++) {
+			List<State> beam = prune(reached.get(i));
+			if (beam.isEmpty()) {
+				break;
+			}
+			for (Arc arc : arcs(models, tokens, i)) {
+				for (State state : beam) {
+					int edits = state.edits + arc.edits;
+					if (edits > MAX_EDITS) {
+						continue;
+					}
+					double score = state.score + arc.channel
+							+ MU * languageScore(lm, state.lastWord, arc.word1);
+					int last = arc.word1;
+					if (arc.word2 >= 0) {
+						score += MU * languageScore(lm, last, arc.word2);
+						last = arc.word2;
+					}
+					Map<Long, State> next = reached.get(arc.to);
+					Long k = key(last, edits);
+					State old = next.get(k);
+					if (old == null || score > old.score) {
+						next.put(k, new State(last, edits, score, state, arc));
+					}
+				}
+			}
+		}
+
+		State best = null;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		double unedited = models.noisyChannelModel().getEditProbability(query, query, 0);
+		for (State state : reached.get(n).values()) {
+			double score = state.score + (state.edits == 0 ? unedited : 0);
+			if (score > bestScore) {
+				bestScore = score;
+				best = state;
+			}
+		}
+		if (best == null) {
+			return query.trim();
+		}
+		Vocabulary vocab = lm.vocabulary();
+		List<String> words = new ArrayList<String>();
+		for (State state = best; state.arc != null; state = state.back) {
+			if (state.arc.word2 >= 0) {
+				words.add(vocab.term(state.arc.word2));
+			}
+			words.add(vocab.term(state.arc.word1));
+		}
+		Collections.reverse(words);
+		StringBuilder correction = new StringBuilder();
+		for (String word : words) {
+			if (correction.length() > 0) {
+				correction.append(' ');
+			}
+			correction.append(word);
+		}
+		return correction.toString();
+	}
+
+	private static Long key(int lastWord, int edits) {
+		return ((long) lastWord << 2) | edits;
+	}
+
+	// The best beamWidth states
+	private List<State> prune(Map<Long, State> states) {
+		List<State> beam = new ArrayList<State>(states.values());
+		Collections.sort(beam, BY_SCORE);
+		return beam.size() > _beamWidth ? beam.subList(0, _beamWidth) : beam;
+	}
+
+	// Log probability of word given the previous one, or of the first word
+	private static double languageScore(LanguageModel lm, int previous, int word) {
+		return previous < 0 ? lm.logUnigramProbability(word)
+				: lm.bigramProbability(previous, word);
+	}
+
+	// The alternatives for the tokens starting at i
+	private static List<Arc> arcs(ModelSnapshot models, List<String> tokens, int i) {
+		NoisyChannelModel ncm = models.noisyChannelModel();
+		CandidateEngine engine = models.engine();
+		Vocabulary vocab = models.languageModel().vocabulary();
+		List<Arc> arcs = new ArrayList<Arc>();
+		IntList ids = new IntList();
+		IntList distances = new IntList();
+		String context = i == 0 ? "" : " ";
+		String token = tokens.get(i);
+
+		// The token itself, and the words up to two edits away
+		int id = vocab.id(token, 0, token.length());
+		if (id >= 0) {
+			arcs.add(new Arc(i + 1, id, -1, 0, 0));
+		}
+		engine.lookup(token, 0, token.length(), MAX_EDITS, ids, distances);
+		for (int k = 0; k < ids.size(); k++) {
+			arcs.add(new Arc(i + 1, ids.get(k), -1, distances.get(k),
+					channel(ncm, context + vocab.term(ids.get(k)), context + token,
+							distances.get(k))));
+		}
+
+		// Split the token by inserting a space, or by replacing a char with one
+		for (int k = 1; k < token.length(); k++) {
+			addSplit(arcs, vocab, ncm, i, context, token, k, k);
+			if (k + 1 < token.length()) {
+				addSplit(arcs, vocab, ncm, i, context, token, k, k + 1);
+			}
+		}
+
+		// Join the token with the next one by deleting the space between them, then
+		// possibly edit the joined word once more
+		if (i + 1 < tokens.size()) {
+			String typed = token + " " + tokens.get(i + 1);
+			String joined = token + tokens.get(i + 1);
+			id = vocab.id(joined, 0, joined.length());
+			if (id >= 0) {
+				arcs.add(new Arc(i + 2, id, -1, 1,
+						channel(ncm, context + joined, context + typed, 1)));
+			}
+			ids.clear();
+			distances.clear();
+			engine.lookup(joined, 0, joined.length(), MAX_EDITS - 1, ids, distances);
+			for (int k = 0; k < ids.size(); k++) {
+				int edits = distances.get(k) + 1;
+				arcs.add(new Arc(i + 2, ids.get(k), -1, edits,
+						channel(ncm, context + vocab.term(ids.get(k)), context + typed, edits)));
+			}
+		}
+		return arcs;
+	}
+
+	// Adds the two words token[0, left) and token[right, end) if both are known
+	private static void addSplit(List<Arc> arcs, Vocabulary vocab, NoisyChannelModel ncm, int i,
+			String context, String token, int left, int right) {
+		int id1 = vocab.id(token, 0, left);
+		int id2 = id1 < 0 ? -1 : vocab.id(token, right, token.length());
+		if (id2 >= 0) {
+			String split = token.substring(0, left) + " " + token.substring(right);
+			arcs.add(new Arc(i + 1, id1, id2, 1,
+					channel(ncm, context + split, context + token, 1)));
+		}
+	}
+
+	private static double channel(NoisyChannelModel ncm, String candidate, String typed,
+			int edits) {
+		return ncm.getEditProbability(candidate, typed, edits);
+	}
+}
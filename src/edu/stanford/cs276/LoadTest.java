@@ -0,0 +1,206 @@
+package edu.stanford.cs276;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load-test client for CorrectionServer. A number of client threads send the
+ * queries of a file round-robin, one per /correct request or several per /batch
+ * request, each waiting for its answer before sending the next, and the latency of
+ * every request is recorded. Prints throughput and latency percentiles; the first
+ * requests of each client only warm up the server and are not counted.
+ */
+public class LoadTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static void main(String[] args) throws Exception {
+		int port = 8276;
+		int clients = 4;
+		int requests = 1000;
+		int warmup = 100;
+		int batchSize = 0;
+		List<String> positional = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ("--port".equals(args[i]) && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if ("--clients".equals(args[i]) && i + 1 < args.length) {
+				clients = Integer.parseInt(args[++i]);
+			} else if ("--requests".equals(args[i]) && i + 1 < args.length) {
+				requests = Integer.parseInt(args[++i]);
+			} else if ("--warmup".equals(args[i]) && i + 1 < args.length) {
+				warmup = Integer.parseInt(args[++i]);
+			} else if ("--batch".equals(args[i]) && i + 1 < args.length) {
+				batchSize = Integer.parseInt(args[++i]);
+			} else {
+				positional.add(args[i]);
+			}
+		}
+		if (positional.size() != 1) {
+			System.err.println(
+					"Invalid arguments.  Argument count must be 1 \n" +
+					"java edu.stanford.cs276.LoadTest <query file> \n" +
+					"Options: \n" +
+					"  --port N      server port on localhost (default: 8276) \n" +
+					"  --clients N   concurrent client threads (default: 4) \n" +
+					"  --requests N  timed requests per client (default: 1000) \n" +
+					"  --warmup N    untimed requests per client first (default: 100) \n" +
+					"  --batch N     send N queries per /batch request instead of one per \n" +
+					"                /correct request \n");
+			return;
+		}
+
+		final List<String> queries = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(new File(positional.get(0))));
+		String line;
+		while ((line = in.readLine()) != null) {
+			queries.add(line);
+		}
+		in.close();
+		if (queries.isEmpty()) {
+			throw new Exception("No queries in " + positional.get(0));
+		}
+
+		final String base = "http://localhost:" + port;
+		final int timed = requests;
+		final int untimed = warmup;
+		final int batch = batchSize;
+		final AtomicInteger next = new AtomicInteger();
+		final long[][] latencies = new long[clients][];
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		List<Future<Void>> done = new ArrayList<Future<Void>>();
+		final long[] timedStart = new long[clients];
+		for (int c = 0; c < clients; c++) {
+			final int client = c;
+			done.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					long[] times = new long[timed];
+					for (int r = -untimed; r < timed; r++) {
+						if (r == 0) {
+							timedStart[client] = System.nanoTime();
+						}
+						long start = System.nanoTime();
+						if (batch > 0) {
+							StringBuilder body = new StringBuilder();
+							for (int q = 0; q < batch; q++) {
+								body.append(queries.get(next.getAndIncrement() % queries.size()))
+										.append('\n');
+							}
+							post(base + "/batch", body.toString());
+						} else {
+							String query = queries.get(next.getAndIncrement() % queries.size());
+							get(base + "/correct?q=" + URLEncoder.encode(query, "UTF-8"));
+						}
+						if (r >= 0) {
+							times[r] = System.nanoTime() - start;
+						}
+					}
+					latencies[client] = times;
+					return null;
+				}
+			}));
+		}
+		long end;
+		try {
+			for (Future<Void> future : done) {
+				future.get();
+			}
+			end = System.nanoTime();
+		} catch (ExecutionException e) {
+			// A failed request ends the run; the other clients are interrupted
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw (Error) cause;
+		} finally {
+			pool.shutdownNow();
+		}
+
+		long first = Long.MAX_VALUE;
+		for (long start : timedStart) {
+			first = Math.min(first, start);
+		}
+		long[] all = new long[clients * timed];
+		for (int c = 0; c < clients; c++) {
+			System.arraycopy(latencies[c], 0, all, c * timed, timed);
+		}
+		Arrays.sort(all);
+		double seconds = (end - first) / 1e9;
+		int perRequest = Math.max(1, batch);
+		System.out.printf("%d clients, %d requests of %d queries in %.2f s\n", clients, all.length,
+				perRequest, seconds);
+		System.out.printf("throughput: %.1f requests/s, %.1f queries/s\n", all.length / seconds,
+				(double) all.length * perRequest / seconds);
+		System.out.printf("latency ms: p50 %.3f  p90 %.3f  p99 %.3f  max %.3f\n",
+				percentile(all, 50), percentile(all, 90), percentile(all, 99), percentile(all, 100));
+	}
+
+	// Nearest-rank percentile of sorted nanosecond times, in milliseconds
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(p / 100 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)] / 1e6;
+	}
+
+	private static String get(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		return read(connection);
+	}
+
+	private static String post(String url, String body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		byte[] bytes = body.getBytes(UTF8);
+		connection.setFixedLengthStreamingMode(bytes.length);
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		return read(connection);
+	}
+
+	// Reads the whole response, so that the connection can be kept alive
+	private static String read(HttpURLConnection connection) throws IOException {
+		if (connection.getResponseCode() != 200) {
+			throw new IOException(connection.getURL() + " answered " + connection.getResponseCode());
+		}
+		InputStream in = connection.getInputStream();
+		try {
+			// Decoded once at the end, as a chunk may split a multibyte char
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				response.write(buffer, 0, n);
+			}
+			return new String(response.toByteArray(), UTF8);
+		} finally {
+			in.close();
+		}
+	}
+}
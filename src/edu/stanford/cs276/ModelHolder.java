@@ -0,0 +1,33 @@
+package edu.stanford.cs276;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the ModelSnapshot that queries are corrected with, so that it can be
+ * replaced while they run. A query takes the current snapshot once, without a lock,
+ * and uses it throughout; swap() makes a new one current for the queries that start
+ * after. Nothing else keeps a snapshot that was swapped out, so it and its mapped
+ * model files are left to the garbage collector once the last query using it ends.
+ */
+public class ModelHolder {
+
+	private final AtomicReference<ModelSnapshot> _current;
+
+	public ModelHolder(ModelSnapshot snapshot) {
+		_current = new AtomicReference<ModelSnapshot>(snapshot);
+	}
+
+	public ModelSnapshot current() {
+		return _current.get();
+	}
+
+	/**
+	 * Makes snapshot current and returns the one it replaces.
+	 */
+	public ModelSnapshot swap(ModelSnapshot snapshot) {
+		if (snapshot == null) {
+			throw new IllegalArgumentException("snapshot must not be null");
+		}
+		return _current.getAndSet(snapshot);
+	}
+}
@@ -0,0 +1,75 @@
+package edu.stanford.cs276;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The models a query is corrected with: a language model, a noisy channel model of
+ * a chosen probability type, the candidate engine built for that language model, if
+ * any, and the candidate generator over its words. A snapshot never changes once
+ * made, so a query that reads one from a ModelHolder sees the same consistent models
+ * to the end, even while another snapshot is swapped in.
+ */
+public class ModelSnapshot {
+
+	private static final AtomicLong generations = new AtomicLong();
+
+	private final LanguageModel _lm;
+	private final NoisyChannelModel _ncm;
+	private final CandidateEngine _engine;
+	private final CandidateGenerator _cg;
+	private final long _generation;
+
+	/**
+	 * The channel model must have a probability type (see
+	 * NoisyChannelModel.withProbabilityType), and the engine must belong to the
+	 * language model; null tries every edit. What queries read of the language model
+	 * never changes, so snapshots may share one.
+	 */
+	public ModelSnapshot(LanguageModel lm, NoisyChannelModel ncm, CandidateEngine engine) {
+		if (ncm.getProbabilityType() == null) {
+			throw new IllegalArgumentException("The noisy channel model has no probability type");
+		}
+		_lm = lm;
+		_ncm = ncm;
+		_engine = engine;
+		_cg = new CandidateGenerator(lm);
+		_generation = generations.incrementAndGet();
+	}
+
+	/**
+	 * Loads the saved models, scoring edits by the given probability type and finding
+	 * them with the engine named as by RunCorrector's --engine.
+	 */
+	public static ModelSnapshot load(String probabilityType, String engineName) throws Exception {
+		LanguageModel lm = LanguageModel.load();
+		NoisyChannelModel ncm = NoisyChannelModel.load().withProbabilityType(probabilityType);
+		return new ModelSnapshot(lm, ncm, RunCorrector.loadEngine(engineName, lm));
+	}
+
+	public LanguageModel languageModel() {
+		return _lm;
+	}
+
+	public NoisyChannelModel noisyChannelModel() {
+		return _ncm;
+	}
+
+	/**
+	 * The candidate engine, or null to try every edit.
+	 */
+	public CandidateEngine engine() {
+		return _engine;
+	}
+
+	public CandidateGenerator candidateGenerator() {
+		return _cg;
+	}
+
+	/**
+	 * Number unique to this snapshot among those made by this process, higher for
+	 * later ones.
+	 */
+	public long generation() {
+		return _generation;
+	}
+}
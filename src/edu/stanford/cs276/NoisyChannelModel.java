@@ -1,64 +1,144 @@
 package edu.stanford.cs276;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.io.File;
 
-public class NoisyChannelModel implements Serializable {
+import edu.stanford.cs276.util.IngestedInputs;
+import edu.stanford.cs276.util.ModelFile;
+
+public class NoisyChannelModel {
 	
-	private static NoisyChannelModel ncm_ = null;
-	EditCostModel ecm_ = null;
+	// The cost model chosen by withProbabilityType, or null until one is
+	final EditCostModel ecm_;
 
 	EmpiricalCostModel empiricalCostModel = null;
 	UniformCostModel uniformCostModel = null;
+	// The edits files counted and how much of each, or null if not known
+	IngestedInputs inputs = null;
 	
 	public double getEditProbability(String s, String r, int distance) {
 		return ecm_.editProbability(s, r, distance);
 	}
+
+	/**
+	 * Returns an upper bound on getEditProbability(s, r, distance) over every s that
+	 * differs from r.
+	 */
+	public double getMaxEditProbability(int distance) {
+		return ecm_.maxEditProbability(distance);
+	}
 		
-	// Don't call the constructor directly (singleton instance)
+	// Counts the edits file; see create()
 	private NoisyChannelModel(String editsFile) throws Exception {
+		File file = new File(editsFile);
+		long length = file.length();
 		empiricalCostModel = new EmpiricalCostModel(editsFile);
 		uniformCostModel = new UniformCostModel();
+		inputs = new IngestedInputs();
+		inputs.record(file, length);
+		ecm_ = null;
+	}
+
+	NoisyChannelModel(EmpiricalCostModel empiricalCostModel) {
+		this.empiricalCostModel = empiricalCostModel;
+		uniformCostModel = new UniformCostModel();
+		ecm_ = null;
+	}
+
+	// The same counts as model, scored by ecm
+	private NoisyChannelModel(NoisyChannelModel model, EditCostModel ecm) {
+		empiricalCostModel = model.empiricalCostModel;
+		uniformCostModel = model.uniformCostModel;
+		inputs = model.inputs;
+		ecm_ = ecm;
 	}
 
 	public static NoisyChannelModel create(String editsFile) throws Exception {
-		if (ncm_ == null) {
-			ncm_ = new NoisyChannelModel(editsFile);
-		}
-		return ncm_;
+		return new NoisyChannelModel(editsFile);
 	}
 	
+	// Maps the model file written by save() and reads it in place. Every call maps
+	// the file as it is now, so a model saved since is picked up.
 	public static NoisyChannelModel load() throws Exception {
 		try {
-			// Don't load NVM from disk if it's already been loaded.
-			if (ncm_ == null) {
-				FileInputStream fiA = new FileInputStream(Config.noisyChannelFile);
-				ObjectInputStream oisA = new ObjectInputStream(fiA);
-				ncm_ = (NoisyChannelModel) oisA.readObject();
-				oisA.close();
-			}
+			return read(Config.noisyChannelFile);
 		} catch (Exception e){
-			throw new Exception("Unable to load noise channel model.  You may have not run build corrector");
+			throw new Exception("Unable to load noise channel model.  You may have not run build corrector"
+					+ " (or need to run ConvertModels on a model saved by an older version)", e);
+		}
+	}
+
+	/**
+	 * Loads the model saved by save() and returns it with the counts of the edit
+	 * lines added to editsFile since it was counted, or of the whole file if it is
+	 * new, without saving it.
+	 */
+	public static NoisyChannelModel update(String editsFile) throws Exception {
+		NoisyChannelModel saved = read(Config.noisyChannelFile);
+		if (saved.inputs == null) {
+			throw new Exception("The saved noisy channel model does not record the edits files it was"
+					+ " counted from; rebuild it without --update");
+		}
+		File file = new File(editsFile);
+		long from = saved.inputs.counted(file);
+		long to = file.length();
+		NoisyChannelModel ncm = new NoisyChannelModel(new EmpiricalCostModel(
+				saved.empiricalCostModel.copyCounts(), file, from, to));
+		ncm.inputs = saved.inputs;
+		ncm.inputs.record(file, to);
+		return ncm;
+	}
+
+	static NoisyChannelModel read(String path) throws Exception {
+		ModelFile file = ModelFile.open(path, ModelFile.NOISY_CHANNEL);
+		NoisyChannelModel ncm = new NoisyChannelModel(EmpiricalCostModel.read(file, 0));
+		// Files saved before the record of inputs have only the count tables
+		if (file.sectionCount() > 5) {
+			ncm.inputs = new IngestedInputs(file.section(5));
 		}
-		return ncm_;
+		return ncm;
 	}
 	
-	// Saves this object to disk.  All subdata (empiricalcostmodel) will be saved 
+	// Saves this object to disk.  The uniform model has no state, so the file holds
+	// the empirical model's count tables, followed by the record of the edits files
+	// counted if it is known.
 	public void save() throws Exception{
-		FileOutputStream saveFile = new FileOutputStream(Config.noisyChannelFile);
-		ObjectOutputStream save = new ObjectOutputStream(saveFile);
-		save.writeObject(this);
-		save.close();
+		save(Config.noisyChannelFile);
+	}
+
+	void save(String path) throws Exception {
+		ModelFile.Writer writer = new ModelFile.Writer(path, ModelFile.NOISY_CHANNEL,
+				inputs != null ? 6 : 5);
+		try {
+			empiricalCostModel.write(writer);
+			if (inputs != null) {
+				inputs.write(writer.beginSection());
+			}
+			writer.close();
+		} finally {
+			writer.abort();
+		}
+	}
+
+	/**
+	 * Returns the type passed to withProbabilityType, or null if this model has none.
+	 */
+	public String getProbabilityType() {
+		if (ecm_ == null) {
+			return null;
+		}
+		return ecm_ == empiricalCostModel ? "empirical" : "uniform";
 	}
 
-	public void setProbabilityType(String type) throws Exception {
+	/**
+	 * Returns a model that shares these counts and scores edits by the given type,
+	 * "empirical" or "uniform". This model is left as it is, so models of both types
+	 * can be used at once.
+	 */
+	public NoisyChannelModel withProbabilityType(String type) throws Exception {
 		if (type.equals("empirical")) {
-			ecm_ = this.empiricalCostModel;
+			return new NoisyChannelModel(this, empiricalCostModel);
 		} else if (type.equals("uniform")) {
-			ecm_ = this.uniformCostModel;
+			return new NoisyChannelModel(this, uniformCostModel);
 		} else {
 			throw new Exception("Invalid noisy channel probability type "
 					+ "- must be one of <uniform | empirical>");
@@ -0,0 +1,98 @@
+package edu.stanford.cs276;
+
+import java.io.PrintStream;
+
+import edu.stanford.cs276.util.Histogram;
+
+/**
+ * Per-query measurements of a correction run, each kept in a Histogram: the time to
+ * correct the whole query, and for every search SpellingCorrector makes, the time
+ * spent generating and scoring candidates, the candidates at distance 1 and 2, and
+ * the vocabulary lookups made. Safe to record into from any number of threads.
+ */
+public class QueryMetrics {
+
+	final Histogram latency = new Histogram();
+	final Histogram generation = new Histogram();
+	final Histogram scoring = new Histogram();
+	final Histogram distance1 = new Histogram();
+	final Histogram distance2 = new Histogram();
+	final Histogram lookups = new Histogram();
+
+	/**
+	 * Records the time to correct one query, cache hits included.
+	 */
+	public void recordQuery(long nanos) {
+		latency.record(nanos);
+	}
+
+	/**
+	 * Records one candidate search; distance2 is 0 when no distance 2 candidates
+	 * were generated.
+	 */
+	public void recordSearch(long generationNanos, long scoringNanos, int distance1Candidates,
+			int distance2Candidates, long vocabularyLookups) {
+		generation.record(generationNanos);
+		scoring.record(scoringNanos);
+		distance1.record(distance1Candidates);
+		distance2.record(distance2Candidates);
+		lookups.record(vocabularyLookups);
+	}
+
+	/**
+	 * Prints p50, p95, p99 and max of each measurement, and the throughput over the
+	 * given wall time.
+	 */
+	public void print(PrintStream out, double seconds) {
+		out.printf("Queries: %d in %.2f s, %.1f queries/s\n", latency.count(), seconds,
+				latency.count() / seconds);
+		out.printf("%-16s %10s %10s %10s %10s %10s\n", "", "p50", "p95", "p99", "max", "mean");
+		printTime(out, "query ms", latency);
+		if (generation.count() > 0) {
+			printTime(out, "generation ms", generation);
+			printTime(out, "scoring ms", scoring);
+			printCount(out, "distance 1", distance1);
+			printCount(out, "distance 2", distance2);
+			printCount(out, "lookups", lookups);
+		}
+	}
+
+	private static void printTime(PrintStream out, String name, Histogram h) {
+		out.printf("%-16s %10.3f %10.3f %10.3f %10.3f %10.3f\n", name, h.percentile(50) / 1e6,
+				h.percentile(95) / 1e6, h.percentile(99) / 1e6, h.max() / 1e6, h.mean() / 1e6);
+	}
+
+	private static void printCount(PrintStream out, String name, Histogram h) {
+		out.printf("%-16s %10d %10d %10d %10d %10.1f\n", name, h.percentile(50), h.percentile(95),
+				h.percentile(99), h.max(), h.mean());
+	}
+
+	/**
+	 * Writes every measurement as tab-separated lines: a summary line per
+	 * measurement, then a line per non-empty histogram bucket. Times are in
+	 * nanoseconds.
+	 *
+	 *   summary  name  count  p50  p95  p99  max  mean
+	 *   bucket   name  low  high  count
+	 */
+	public void dump(PrintStream out, double seconds) {
+		out.printf("run\tqueries\t%d\tseconds\t%.3f\n", latency.count(), seconds);
+		String[] names = {"query_ns", "generation_ns", "scoring_ns", "distance1", "distance2",
+				"lookups"};
+		Histogram[] histograms = {latency, generation, scoring, distance1, distance2, lookups};
+		for (int i = 0; i < names.length; i++) {
+			Histogram h = histograms[i];
+			out.printf("summary\t%s\t%d\t%d\t%d\t%d\t%d\t%.3f\n", names[i], h.count(),
+					h.percentile(50), h.percentile(95), h.percentile(99), h.max(), h.mean());
+		}
+		for (int i = 0; i < names.length; i++) {
+			Histogram h = histograms[i];
+			for (int b = 0; b < Histogram.buckets(); b++) {
+				if (h.countAt(b) > 0) {
+					out.printf("bucket\t%s\t%d\t%d\t%d\n", names[i], Histogram.bucketLow(b),
+							Histogram.bucketHigh(b), h.countAt(b));
+				}
+			}
+		}
+	}
+}
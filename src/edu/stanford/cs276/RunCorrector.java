@@ -2,19 +2,65 @@ package edu.stanford.cs276;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class RunCorrector {
 
 	public static LanguageModel languageModel;
 	public static NoisyChannelModel nsm;
 	public static SpellingCorrector spellingCorrector;	
+	public static LatticeDecoder latticeDecoder;
+	public static QueryMetrics queryMetrics;
 
 	public static void main(String[] args) throws Exception {
 		
 		long startTime = System.currentTimeMillis();
 		
-		// Parse input arguments
+		// Parse input arguments. Options may appear anywhere; everything else is positional.
+		int threads = 1;
+		String engineName = "brute";
+		boolean lattice = false;
+		int beamWidth = 16;
+		int cacheCapacity = 0;
+		double confidenceMargin = Double.POSITIVE_INFINITY;
+		boolean stats = false;
+		String statsDumpPath = null;
+		List<String> positional = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ("--threads".equals(args[i]) && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if ("--engine".equals(args[i]) && i + 1 < args.length) {
+				engineName = args[++i];
+			} else if ("--lattice".equals(args[i])) {
+				lattice = true;
+			} else if ("--beam".equals(args[i]) && i + 1 < args.length) {
+				beamWidth = Integer.parseInt(args[++i]);
+			} else if ("--cache".equals(args[i]) && i + 1 < args.length) {
+				cacheCapacity = Integer.parseInt(args[++i]);
+			} else if ("--confidence-margin".equals(args[i]) && i + 1 < args.length) {
+				confidenceMargin = Double.parseDouble(args[++i]);
+			} else if ("--stats".equals(args[i])) {
+				stats = true;
+			} else if ("--stats-dump".equals(args[i]) && i + 1 < args.length) {
+				stats = true;
+				statsDumpPath = args[++i];
+			} else {
+				positional.add(args[i]);
+			}
+		}
+		args = positional.toArray(new String[positional.size()]);
+
 		String uniformOrEmpirical = null;
 		String queryFilePath = null;
 		String goldFilePath = null;
@@ -50,7 +96,24 @@ public class RunCorrector {
 					"SAMPLE: ./runcorrector empirical data/queries.txt \n" +
 					"SAMPLE: ./runcorrector empirical data/queries.txt data/gold.txt \n" +
 					"SAMPLE: ./runcorrector empirical data/queries.txt extra \n" +
-					"SAMPLE: ./runcorrector empirical data/queries.txt extra data/gold.txt \n");
+					"SAMPLE: ./runcorrector empirical data/queries.txt extra data/gold.txt \n" +
+					"Options: \n" +
+					"  --threads N   correct N queries at a time (default: 1) \n" +
+					"  --engine E    how to find edits inside words: brute (try every edit, default), \n" +
+					"                index (the index built by buildmodels --index) or trie \n" +
+					"  --lattice     decode a lattice of per-word alternatives instead of scoring \n" +
+					"                whole candidate queries (uses the trie unless --engine index) \n" +
+					"  --beam N      states kept per word by --lattice (default: 16) \n" +
+					"  --cache N     remember the corrections of N recent queries (default: 0, off; \n" +
+					"                not used by --lattice); statistics are printed to stderr \n" +
+					"  --confidence-margin M  skip the distance 2 candidates of a valid query that \n" +
+					"                scores M (a natural log) above each of its single edits \n" +
+					"                (default: never; not used by --lattice); see CalibrateMargin \n" +
+					"  --stats       print per-query latency, candidate and lookup percentiles, \n" +
+					"                throughput and candidate scoring counts to stderr (only \n" +
+					"                latency and throughput with --lattice) \n" +
+					"  --stats-dump F  also write them, with histogram buckets, to F as \n" +
+					"                tab-separated lines \n");
 			return;
 		}
 		
@@ -60,56 +123,167 @@ public class RunCorrector {
 		
 		// Load models from disk
 		languageModel = LanguageModel.load();
-		nsm = NoisyChannelModel.load();
+		nsm = NoisyChannelModel.load().withProbabilityType(uniformOrEmpirical);
 		BufferedReader queriesFileReader = new BufferedReader(new FileReader(new File(queryFilePath)));
-		nsm.setProbabilityType(uniformOrEmpirical);
+		if (stats) {
+			queryMetrics = new QueryMetrics();
+			languageModel = languageModel.withLookupsCounted();
+		}
 		
-		spellingCorrector = new SpellingCorrector(languageModel, nsm);
+		CandidateEngine engine = loadEngine(engineName, languageModel);
+		spellingCorrector = new SpellingCorrector(
+				new ModelHolder(new ModelSnapshot(languageModel, nsm, engine)), cacheCapacity,
+				queryMetrics, confidenceMargin);
+		if (lattice) {
+			latticeDecoder = new LatticeDecoder(languageModel, nsm,
+					engine != null ? engine : VocabularyTrie.build(languageModel.vocabulary()), beamWidth);
+		}
 		
 		int totalCount = 0;
 		int yourCorrectCount = 0;
-		String query = null;
+
+		/*
+		 * With --threads N the queries are corrected by a pool of N workers. Up to
+		 * `window` queries are read ahead and submitted; their corrections are taken
+		 * back in input order, so output and gold comparison are unchanged. With one
+		 * thread each query is corrected inline.
+		 */
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		int window = threads > 1 ? threads * 64 : 1;
+		ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+		boolean moreQueries = true;
+		long correctionStart = System.nanoTime();
 		
 		/*
 		 * Each line in the file represents one query.  We loop over each query and find
 		 * the most likely correction
 		 */
-		while ((query = queriesFileReader.readLine()) != null) {
+		try {
+			while (true) {
+				while (moreQueries && pending.size() < window) {
+					String nextQuery = queriesFileReader.readLine();
+					if (nextQuery == null) {
+						moreQueries = false;
+					} else {
+						pending.add(submit(pool, nextQuery));
+					}
+				}
+				if (pending.isEmpty()) {
+					break;
+				}
 			
 //			String correctedQuery = query;
-			String correctedQuery = spellingCorrector.bestCorrection(query);
+				String correctedQuery = take(pending.poll());
 //			System.out.println("Best cor: " + correcte);
-			/*
-			 * Your code here
-			 */
+				/*
+				 * Your code here
+				 */
 			
 			
-			if ("extra".equals(extra)) {
-				/*
-				 * If you are going to implement something regarding to running the corrector, 
-				 * you can add code here. Feel free to move this code block to wherever 
-				 * you think is appropriate. But make sure if you add "extra" parameter, 
-				 * it will run code for your extra credit and it will run you basic 
-				 * implementations without the "extra" parameter.
-				 */	
-			}
+				if ("extra".equals(extra)) {
+					/*
+					 * If you are going to implement something regarding to running the corrector, 
+					 * you can add code here. Feel free to move this code block to wherever 
+					 * you think is appropriate. But make sure if you add "extra" parameter, 
+					 * it will run code for your extra credit and it will run you basic 
+					 * implementations without the "extra" parameter.
+					 */	
+				}
 			
 
-			// If a gold file was provided, compare our correction to the gold correction
-			// and output the running accuracy
-			if (goldFileReader != null) {
-				String goldQuery = goldFileReader.readLine();
-				if (goldQuery.equals(correctedQuery)) {
-					yourCorrectCount++;
+				// If a gold file was provided, compare our correction to the gold correction
+				// and output the running accuracy
+				if (goldFileReader != null) {
+					String goldQuery = goldFileReader.readLine();
+					if (goldQuery.equals(correctedQuery)) {
+						yourCorrectCount++;
+					}
+					totalCount++;
 				}
-				totalCount++;
+				System.out.println(correctedQuery);
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
 			}
-			System.out.println(correctedQuery);
 		}
 		queriesFileReader.close();
 		long endTime   = System.currentTimeMillis();
 		long totalTime = endTime - startTime;
 		System.out.println("Total correct: " + yourCorrectCount + " / " + totalCount);
+		if (spellingCorrector.cache() != null) {
+			System.err.println("Correction cache: " + spellingCorrector.cache());
+		}
+		if (queryMetrics != null) {
+			double seconds = (System.nanoTime() - correctionStart) / 1e9;
+			queryMetrics.print(System.err, seconds);
+			if (statsDumpPath != null) {
+				PrintStream dump = new PrintStream(new FileOutputStream(statsDumpPath));
+				try {
+					queryMetrics.dump(dump, seconds);
+				} finally {
+					dump.close();
+				}
+			}
+		}
+		if (stats && latticeDecoder == null) {
+			System.err.printf("Candidate scoring: %d scored, %d pruned, %d distance 2 searches skipped"
+					+ " (%d on confidence)\n",
+					spellingCorrector.scoredCandidates(), spellingCorrector.prunedCandidates(),
+					spellingCorrector.twoEditSearchesSkipped() + spellingCorrector.confidentQueries(),
+					spellingCorrector.confidentQueries());
+		}
 		// System.out.println("RUNNING TIME: "+totalTime/1000+" seconds ");
 	}
+
+	/**
+	 * Returns the candidate engine named by --engine for the language model, or null
+	 * for brute, which tries every edit.
+	 */
+	static CandidateEngine loadEngine(String engineName, LanguageModel languageModel)
+			throws Exception {
+		if ("index".equals(engineName)) {
+			return SymmetricDeleteIndex.load(Config.candidateGenFile, languageModel);
+		} else if ("trie".equals(engineName)) {
+			return VocabularyTrie.build(languageModel.vocabulary());
+		} else if (!"brute".equals(engineName)) {
+			throw new Exception("Unknown candidate engine " + engineName);
+		}
+		return null;
+	}
+
+	// Waits for a correction, rethrowing whatever correcting the query threw
+	private static String take(Future<String> correction) throws Exception {
+		try {
+			return correction.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+
+	// Starts correcting a query on the pool, or corrects it right away without one
+	private static Future<String> submit(ExecutorService pool, final String query) {
+		Callable<String> correction = new Callable<String>() {
+			@Override
+			public String call() {
+				long start = queryMetrics != null ? System.nanoTime() : 0;
+				String correction = latticeDecoder != null ? latticeDecoder.bestCorrection(query)
+						: spellingCorrector.bestCorrection(query);
+				if (queryMetrics != null) {
+					queryMetrics.recordQuery(System.nanoTime() - start);
+				}
+				return correction;
+			}
+		};
+		if (pool != null) {
+			return pool.submit(correction);
+		}
+		FutureTask<String> task = new FutureTask<String>(correction);
+		task.run();
+		return task;
+	}
 }
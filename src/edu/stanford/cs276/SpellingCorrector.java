@@ -1,52 +1,435 @@
 	
 package edu.stanford.cs276;
 
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import edu.stanford.cs276.util.LongSet;
+import edu.stanford.cs276.util.LruCache;
 import edu.stanford.cs276.util.Pair;
 
+/**
+ * Finds the most likely correction of a query. A corrector holds no per-query state,
+ * so one instance can serve any number of threads at once. It corrects each query
+ * with the snapshot its ModelHolder holds when the query starts, so the models can
+ * be swapped while it runs.
+ */
 public class SpellingCorrector {
-	private LanguageModel _lm;
-	private NoisyChannelModel _ncm;
-	private CandidateGenerator _cg;
+	private final ModelHolder _models;
+	private final LruCache<String, String> _cache;
+	private final QueryMetrics _metrics;
+	private final AtomicLong _scored = new AtomicLong();
+	private final AtomicLong _pruned = new AtomicLong();
+	private final AtomicLong _twoEditSkipped = new AtomicLong();
+	private final AtomicLong _confident = new AtomicLong();
+	// How far a valid query must score above its other single edits to be answered
+	// without the distance 2 candidates; infinite never answers one so
+	private final double _confidenceMargin;
 	private static final double MU = 1;
 
+	/**
+	 * Corrects with fixed models; the channel model must have a probability type.
+	 */
 	public SpellingCorrector(LanguageModel lm, NoisyChannelModel ncm) {
-		_lm = lm;
-		_ncm = ncm;
-		try {
-			_cg = CandidateGenerator.get();
-			_cg.setLanguageModel(_lm);
-		} catch (Exception e) {
-			e.printStackTrace();
+		this(lm, ncm, null);
+	}
+
+	/**
+	 * Generates candidates with the given engine, which must belong to the language
+	 * model; null tries every edit.
+	 */
+	public SpellingCorrector(LanguageModel lm, NoisyChannelModel ncm, CandidateEngine engine) {
+		this(lm, ncm, engine, 0);
+	}
+
+	/**
+	 * Also remembers the corrections of up to cacheCapacity recent queries, for each
+	 * channel model type; 0 turns the cache off.
+	 */
+	public SpellingCorrector(LanguageModel lm, NoisyChannelModel ncm, CandidateEngine engine,
+			int cacheCapacity) {
+		this(lm, ncm, engine, cacheCapacity, null);
+	}
+
+	/**
+	 * Also records the time and candidates of every search in metrics, unless it is
+	 * null. Vocabulary lookups are recorded if lm counts them (see
+	 * LanguageModel.withLookupsCounted).
+	 */
+	public SpellingCorrector(LanguageModel lm, NoisyChannelModel ncm, CandidateEngine engine,
+			int cacheCapacity, QueryMetrics metrics) {
+		this(new ModelHolder(new ModelSnapshot(lm, ncm, engine)), cacheCapacity, metrics);
+	}
+
+	/**
+	 * Corrects with whatever snapshot models holds, with the cache and metrics of the
+	 * constructors above. Corrections cached under one snapshot are not used under
+	 * another.
+	 */
+	public SpellingCorrector(ModelHolder models, int cacheCapacity, QueryMetrics metrics) {
+		this(models, cacheCapacity, metrics, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Also answers a valid query from the candidates within distance 1 alone when its
+	 * own score is at least confidenceMargin above that of every other correction
+	 * within distance 1, without generating the distance 2 candidates that could
+	 * still beat it. Scores are natural logs, so a margin of m asks the query to be
+	 * e^m times as likely as each single edit. Double.POSITIVE_INFINITY never takes
+	 * this shortcut, so that every correction is the best of all candidates; see
+	 * CalibrateMargin for how accuracy and speed trade off between.
+	 */
+	public SpellingCorrector(ModelHolder models, int cacheCapacity, QueryMetrics metrics,
+			double confidenceMargin) {
+		if (!(confidenceMargin >= 0)) {
+			throw new IllegalArgumentException("confidenceMargin must be at least 0, not "
+					+ confidenceMargin);
 		}
+		_models = models;
+		_metrics = metrics;
+		_cache = cacheCapacity > 0 ? new LruCache<String, String>(cacheCapacity) : null;
+		_confidenceMargin = confidenceMargin;
+	}
+
+	/**
+	 * The holder of the models this corrector uses; swap a snapshot into it to
+	 * change them.
+	 */
+	public ModelHolder models() {
+		return _models;
 	}
 
 	public double scoreCandidate(String candidate, String origQuery, int distance) {
-		return _lm.queryProbability(candidate) * MU + _ncm.getEditProbability(candidate, origQuery, distance);
+		ModelSnapshot models = _models.current();
+		return models.languageModel().queryProbability(candidate) * MU
+				+ models.noisyChannelModel().getEditProbability(candidate, origQuery, distance);
+	}
+
+	/**
+	 * The correction cache, with its hit, miss and eviction counts, or null if there
+	 * is none.
+	 */
+	public LruCache<String, String> cache() {
+		return _cache;
 	}
 
 	public String bestCorrection(String query) {
-		Set<Pair<String, Integer>> candidates = null;
-		try {
-			candidates = _cg.getCandidates(query);
-		} catch (Exception e) {
-			e.printStackTrace();
+		ModelSnapshot models = _models.current();
+		if (_cache == null) {
+			return findBestCorrection(models, query);
 		}
-		double maxScore = Double.NEGATIVE_INFINITY;
-		String bestMatch = null;
-		for (Pair<String, Integer> candidate : candidates) {
-			double score = scoreCandidate(candidate.getFirst(), query, candidate.getSecond());
-			if (score > maxScore) {
-				maxScore = score;
-				bestMatch = candidate.getFirst();
+		// The same query is corrected differently under other models; entries of a
+		// snapshot swapped out are never asked for again, and age out
+		String key = models.generation() + "\n" + query;
+		String correction = _cache.get(key);
+		if (correction == null) {
+			correction = findBestCorrection(models, query);
+			_cache.put(key, correction);
+		}
+		return correction;
+	}
+
+	/**
+	 * Candidates whose language model score was computed, and candidates ruled out
+	 * from the channel cost and a bound on their language model score alone.
+	 */
+	public long scoredCandidates() {
+		return _scored.get();
+	}
+
+	public long prunedCandidates() {
+		return _pruned.get();
+	}
+
+	/**
+	 * Queries whose distance 2 candidates were never generated, because none of them
+	 * could beat the best candidate within distance 1.
+	 */
+	public long twoEditSearchesSkipped() {
+		return _twoEditSkipped.get();
+	}
+
+	/**
+	 * Queries answered without their distance 2 candidates because the query itself
+	 * scored confidenceMargin above its other single edits, though a distance 2
+	 * candidate might have beaten it.
+	 */
+	public long confidentQueries() {
+		return _confident.get();
+	}
+
+	/**
+	 * Returns up to n corrections of the query, best first, each with its score,
+	 * log P(correction) * MU + log P(query | correction). The first is the one
+	 * bestCorrection gives; others of equal score follow in the order they were
+	 * generated. Returns an empty list if no candidate has a finite score.
+	 * Candidates are scored as they are generated, and only the n best are kept, each
+	 * new one checked against all of them, so n is meant to be small.
+	 */
+	public List<Pair<String, Double>> bestCorrections(String query, int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("n must be at least 1, not " + n);
+		}
+		return correct(_models.current(), query, n);
+	}
+
+	private String findBestCorrection(ModelSnapshot models, String query) {
+		List<Pair<String, Double>> best = correct(models, query, 1);
+		return best.isEmpty() ? query.trim() : best.get(0).getFirst();
+	}
+
+	// Streams the candidates into a TopCandidates of size n, bounding each score before
+	// computing it. The candidates within distance 1 come first; the distance 2 ones
+	// are generated only when their bound leaves room for one of them among the n
+	// best. The best correction is the same as scoring every candidate of
+	// getCandidates in iteration order and keeping the first with the highest score:
+	// when that score is tied, the set is built after all to break the tie in its
+	// order. With a finite confidence margin, a query confidently correct after the
+	// first stage is answered from it alone, and then may not get that correction.
+	private List<Pair<String, Double>> correct(ModelSnapshot models, String query, int n) {
+		LanguageModel lm = models.languageModel();
+		CandidateGenerator cg = models.candidateGenerator();
+		CandidateEngine engine = models.engine();
+		QueryMetrics metrics = _metrics;
+		long lookups = metrics != null ? lm.lookups() : 0;
+		long start = metrics != null ? System.nanoTime() : 0;
+		TopCandidates top = new TopCandidates(models, query, n, metrics != null, _confidenceMargin);
+		LongSet seen = new LongSet();
+		List<String> singleEdits = cg.streamCandidatesWithinOneEdit(lm, engine, query, seen, top);
+		int withinOneEdit = seen.size();
+		int twoEditCandidates = 0;
+		double twoEditBound = lm.maxQueryProbability() * MU
+				+ models.noisyChannelModel().getMaxEditProbability(2);
+		if (twoEditBound < top.threshold()) {
+			_twoEditSkipped.incrementAndGet();
+		} else if (top.confident()) {
+			_confident.incrementAndGet();
+		} else {
+			cg.streamTwoEditCandidates(lm, engine, singleEdits, seen, top);
+			twoEditCandidates = seen.size() - withinOneEdit;
+		}
+		List<Pair<String, Double>> best = top.sorted();
+		if (top.tied()) {
+			// The first correction may have been dropped for an earlier one of equal score
+			String first = breakTie(models, query, top);
+			int i = 0;
+			while (i < best.size() && !best.get(i).getFirst().equals(first)) {
+				i++;
 			}
+			best.remove(i < best.size() ? i : best.size() - 1);
+			best.add(0, new Pair<String, Double>(first, top.bestScore));
 		}
-		if (bestMatch == null) {
-			bestMatch = query;
+		if (metrics != null) {
+			long generation = System.nanoTime() - start - top.scoringNanos;
+			metrics.recordSearch(generation, top.scoringNanos, singleEdits.size(), twoEditCandidates,
+					lm.lookups() - lookups);
 		}
+		_scored.addAndGet(top.scored);
+		_pruned.addAndGet(top.pruned);
+		return best;
+	}
 
-		return bestMatch.trim();
+	// The first candidate tied for the best score in the iteration order of the
+	// getCandidates set
+	private String breakTie(ModelSnapshot models, String query, TopCandidates top) {
+		for (Pair<String, Integer> candidate : models.candidateGenerator().getCandidates(
+				models.languageModel(), models.engine(), query)) {
+			if (top.ties.contains(candidate)) {
+				return candidate.getFirst().trim();
+			}
+		}
+		return top.ties.get(0).getFirst().trim();
+	}
+
+	// The n best corrections seen so far, in a min-heap with the one to drop first
+	// on top: the lowest score, and of equal scores the latest. A correction is the
+	// trimmed candidate, kept once with its best score. Candidates that tie for the
+	// best score are also listed, as given. With a finite margin it also keeps the
+	// score of the query itself and the best score of another single edit that could
+	// come within the margin of it, scoring such edits even if they cannot be kept.
+	private class TopCandidates implements CandidateSink {
+		final LanguageModel lm;
+		final NoisyChannelModel ncm;
+		final String query;
+		// The heap grows to n entries as candidates come, so a large n costs nothing
+		// up front
+		final int n;
+		double[] scores;
+		String[] corrections;
+		long[] order;
+		int size;
+		long arrivals;
+		final List<Pair<String, Integer>> ties = new ArrayList<Pair<String, Integer>>();
+		double bestScore = Double.NEGATIVE_INFINITY;
+		final boolean timed;
+		long scoringNanos;
+		long scored;
+		long pruned;
+		final double margin;
+		double original = Double.NEGATIVE_INFINITY;
+		double bestOther = Double.NEGATIVE_INFINITY;
+
+		TopCandidates(ModelSnapshot models, String query, int n, boolean timed, double margin) {
+			lm = models.languageModel();
+			ncm = models.noisyChannelModel();
+			this.query = query;
+			this.timed = timed;
+			this.margin = margin;
+			this.n = n;
+			int capacity = Math.min(n, 16);
+			scores = new double[capacity];
+			corrections = new String[capacity];
+			order = new long[capacity];
+		}
+
+		// Lowest score a candidate must reach to be kept
+		double threshold() {
+			return size < n ? Double.NEGATIVE_INFINITY : scores[0];
+		}
+
+		@Override
+		public void accept(String candidate, int distance) {
+			long start = timed ? System.nanoTime() : 0;
+			double channel = ncm.getEditProbability(candidate, query, distance);
+			double bound = lm.queryProbabilityBound(candidate) * MU + channel;
+			// A single edit that may come within the margin of the query counts against it
+			boolean rival = distance == 1 && original > Double.NEGATIVE_INFINITY
+					&& bound > original - margin && !candidate.trim().equals(query.trim());
+			if (bound < threshold() && !rival) {
+				// Cannot be kept, nor tie for the best, which is kept
+				pruned++;
+			} else {
+				double score = lm.queryProbability(candidate) * MU + channel;
+				scored++;
+				if (rival && score > bestOther) {
+					bestOther = score;
+				}
+				if (distance == 0 && margin < Double.POSITIVE_INFINITY) {
+					original = score;
+				}
+				if (score > Double.NEGATIVE_INFINITY) {
+					offer(candidate, distance, score);
+				}
+			}
+			if (timed) {
+				scoringNanos += System.nanoTime() - start;
+			}
+		}
+
+		private void offer(String candidate, int distance, double score) {
+			if (score > bestScore) {
+				bestScore = score;
+				ties.clear();
+			}
+			if (score == bestScore) {
+				ties.add(new Pair<String, Integer>(candidate, distance));
+			}
+			String correction = candidate.trim();
+			long arrival = arrivals++;
+			for (int i = 0; i < size; i++) {
+				if (corrections[i].equals(correction)) {
+					if (score > scores[i]) {
+						scores[i] = score;
+						siftDown(i);
+					}
+					return;
+				}
+			}
+			if (size < n) {
+				if (size == scores.length) {
+					int capacity = (int) Math.min(n, 2L * size);
+					scores = Arrays.copyOf(scores, capacity);
+					corrections = Arrays.copyOf(corrections, capacity);
+					order = Arrays.copyOf(order, capacity);
+				}
+				scores[size] = score;
+				corrections[size] = correction;
+				order[size] = arrival;
+				siftUp(size++);
+			} else if (score > scores[0]) {
+				scores[0] = score;
+				corrections[0] = correction;
+				order[0] = arrival;
+				siftDown(0);
+			}
+		}
+
+		// Whether the query itself scores at least the margin above every other single
+		// edit seen
+		boolean confident() {
+			return original > Double.NEGATIVE_INFINITY && original - bestOther >= margin;
+		}
+
+		// Whether corrections other than one tie for the best score
+		boolean tied() {
+			for (Pair<String, Integer> tie : ties) {
+				if (!tie.getFirst().trim().equals(ties.get(0).getFirst().trim())) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		List<Pair<String, Double>> sorted() {
+			Integer[] byRank = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				byRank[i] = i;
+			}
+			Arrays.sort(byRank, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return dropsFirst(b, a) ? -1 : dropsFirst(a, b) ? 1 : 0;
+				}
+			});
+			List<Pair<String, Double>> result = new ArrayList<Pair<String, Double>>(size);
+			for (int i : byRank) {
+				result.add(new Pair<String, Double>(corrections[i], scores[i]));
+			}
+			return result;
+		}
+
+		private boolean dropsFirst(int a, int b) {
+			return scores[a] < scores[b] || (scores[a] == scores[b] && order[a] > order[b]);
+		}
+
+		private void siftUp(int i) {
+			while (i > 0 && dropsFirst(i, (i - 1) / 2)) {
+				swap(i, (i - 1) / 2);
+				i = (i - 1) / 2;
+			}
+		}
+
+		private void siftDown(int i) {
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) {
+					return;
+				}
+				if (child + 1 < size && dropsFirst(child + 1, child)) {
+					child++;
+				}
+				if (!dropsFirst(child, i)) {
+					return;
+				}
+				swap(i, child);
+				i = child;
+			}
+		}
+
+		private void swap(int a, int b) {
+			double score = scores[a];
+			scores[a] = scores[b];
+			scores[b] = score;
+			String correction = corrections[a];
+			corrections[a] = corrections[b];
+			corrections[b] = correction;
+			long arrival = order[a];
+			order[a] = order[b];
+			order[b] = arrival;
+		}
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,301 @@
+package edu.stanford.cs276;
+
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import edu.stanford.cs276.util.IntList;
+import edu.stanford.cs276.util.LongIntMap;
+import edu.stanford.cs276.util.ModelFile;
+import edu.stanford.cs276.util.Vocabulary;
+
+/**
+ * Symmetric-delete index over the language model vocabulary. Every word is filed
+ * under each string obtained by deleting up to maxDistance of its characters. Two
+ * strings within edit distance k share a variant with at most k deletions from
+ * each, so the words near a typed token are found by probing the token's own
+ * delete variants, then checking each hit's real distance.
+ *
+ * Variants are keyed by a 64-bit hash rather than stored; a collision only adds a
+ * word that the distance check then rejects. The words under a variant are ordered
+ * by how many deletions produced the variant from them, so a lookup for distance k
+ * reads only the words that are at most k deletions away. The index stores word ids
+ * of the saved language model, so it records the CRC32 of that model's vocabulary
+ * section and is only loaded with a model read with the same. It is itself saved as
+ * a model file with one section (D = maxDistance):
+ *
+ *   int FORMAT (-1, where indexes saved before the checksum have vocabularySize),
+ *   long vocabularyChecksum
+ *   int vocabularySize, int maxDistance, int keyCount, int tableSize, int postingCount
+ *   long[tableSize]         variant hashes, 0 for a free slot
+ *   int[tableSize]          start of each variant's words in the postings
+ *   int[tableSize * (D+1)]  number of words under each variant with <= d deletions
+ *   int[postingCount]       word ids
+ */
+public class SymmetricDeleteIndex implements CandidateEngine {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	public static final int FORMAT = -1;
+
+	private final long vocabularyChecksum;
+	private final int vocabularySize;
+	private final int maxDistance;
+	private final int mask;
+	private final LongBuffer keys;
+	private final IntBuffer starts;
+	private final IntBuffer lengths;
+	private final IntBuffer postings;
+	private final int stride;
+	private final Vocabulary vocab;
+
+	private SymmetricDeleteIndex(ByteBuffer section, Vocabulary vocab) {
+		this.vocab = vocab;
+		ByteBuffer buf = section.duplicate();
+		buf.getInt();
+		vocabularyChecksum = buf.getLong();
+		vocabularySize = buf.getInt();
+		maxDistance = buf.getInt();
+		buf.getInt();
+		int tableSize = buf.getInt();
+		int postingCount = buf.getInt();
+		mask = tableSize - 1;
+		stride = maxDistance + 1;
+		keys = ModelFile.slice(buf, 8 * tableSize).asLongBuffer();
+		starts = ModelFile.slice(buf, 4 * tableSize).asIntBuffer();
+		lengths = ModelFile.slice(buf, 4 * tableSize * stride).asIntBuffer();
+		postings = ModelFile.slice(buf, 4 * postingCount).asIntBuffer();
+	}
+
+	public int maxDistance() {
+		return maxDistance;
+	}
+
+	/**
+	 * Maps the index saved at path and checks it was built for the vocabulary lm was
+	 * read with. An index saved while lm was being replaced on disk, for an older
+	 * or newer model, is rejected even if the vocabularies are the same size.
+	 */
+	public static SymmetricDeleteIndex load(String path, LanguageModel lm) throws Exception {
+		ModelFile file = ModelFile.open(path, ModelFile.CANDIDATE_INDEX);
+		ByteBuffer section = file.section(0);
+		if (section.getInt(section.position()) != FORMAT) {
+			throw new Exception("Candidate index " + path + " was built by an older version;"
+					+ " rebuild it with BuildModels --index");
+		}
+		SymmetricDeleteIndex index = new SymmetricDeleteIndex(section, lm.vocabulary());
+		if (index.vocabularySize != lm.vocabulary().size()
+				|| index.vocabularyChecksum != lm.vocabularyChecksum()) {
+			throw new Exception("Candidate index " + path + " was built for another language model;"
+					+ " rebuild it with BuildModels --index");
+		}
+		return index;
+	}
+
+	/**
+	 * Builds the index for every word of the vocabulary of lm, which must have been
+	 * read from a saved model, and saves it to path. The maximum distance can be 1
+	 * or 2.
+	 */
+	public static void build(LanguageModel lm, int maxDistance, String path) throws Exception {
+		if (maxDistance < 1 || maxDistance > 2) {
+			throw new IllegalArgumentException("maxDistance must be 1 or 2");
+		}
+		if (lm.vocabularyChecksum() == 0) {
+			throw new IllegalArgumentException("The index must be built for a saved language model");
+		}
+		Vocabulary vocab = lm.vocabulary();
+		System.out.println("Constructing symmetric delete index...");
+		int stride = maxDistance + 1;
+		// First pass: count the words filed under each variant
+		LongIntMap wordsPerVariant = new LongIntMap(vocab.size() * 8);
+		long[] variants = new long[16];
+		long postingCount = 0;
+		for (int id = 0; id < vocab.size(); id++) {
+			String word = vocab.term(id);
+			variants = deleteVariants(word, 0, word.length(), maxDistance, variants);
+			int n = (int) variants[0];
+			for (int i = 1; i <= n; i++) {
+				wordsPerVariant.add(key(variants[i]));
+			}
+			postingCount += n;
+		}
+		if (postingCount > Integer.MAX_VALUE / 4) {
+			throw new Exception("Vocabulary too large for a symmetric delete index");
+		}
+
+		// Lay out the table and reserve each variant's range of postings
+		long[] sortedKeys = wordsPerVariant.sortedKeys();
+		int tableSize = 16;
+		while (tableSize < 2 * sortedKeys.length) {
+			tableSize <<= 1;
+		}
+		long[] keys = new long[tableSize];
+		int[] starts = new int[tableSize];
+		int[] lengths = new int[tableSize * stride];
+		int start = 0;
+		for (long key : sortedKeys) {
+			int slot = slot(keys, tableSize - 1, key);
+			keys[slot] = key;
+			starts[slot] = start;
+			start += wordsPerVariant.get(key);
+		}
+
+		// Second pass, once per deletion count d: file every word under the variants
+		// that take d deletions, so each variant's words end up ordered by d
+		int[] postings = new int[(int) postingCount];
+		int[] filled = new int[tableSize];
+		for (int d = 0; d <= maxDistance; d++) {
+			for (int id = 0; id < vocab.size(); id++) {
+				String word = vocab.term(id);
+				variants = deleteVariants(word, 0, word.length(), maxDistance, variants);
+				for (int i = 1; i <= (int) variants[0]; i++) {
+					if (deletions(variants[i]) == d) {
+						int slot = slot(keys, tableSize - 1, key(variants[i]));
+						postings[starts[slot] + filled[slot]++] = id;
+					}
+				}
+			}
+			for (int slot = 0; slot < tableSize; slot++) {
+				lengths[slot * stride + d] = filled[slot];
+			}
+		}
+
+		ModelFile.Writer writer = new ModelFile.Writer(path, ModelFile.CANDIDATE_INDEX, 1);
+		try {
+			DataOutputStream out = writer.beginSection();
+			out.writeInt(FORMAT);
+			out.writeLong(lm.vocabularyChecksum());
+			out.writeInt(vocab.size());
+			out.writeInt(maxDistance);
+			out.writeInt(sortedKeys.length);
+			out.writeInt(tableSize);
+			out.writeInt(postings.length);
+			for (long key : keys) {
+				out.writeLong(key);
+			}
+			for (int s : starts) {
+				out.writeInt(s);
+			}
+			for (int l : lengths) {
+				out.writeInt(l);
+			}
+			for (int p : postings) {
+				out.writeInt(p);
+			}
+			writer.close();
+		} finally {
+			writer.abort();
+		}
+		System.out.printf("Done (%d variants, %d postings).\n", sortedKeys.length, postings.length);
+	}
+
+	private static int slot(long[] keys, int mask, long key) {
+		int slot = LongIntMap.hash(key) & mask;
+		while (keys[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Distances beyond the one the index was built for are not searched.
+	 */
+	@Override
+	public void lookup(CharSequence s, int start, int end, int maxDistance, IntList ids,
+			IntList distances) {
+		int k = Math.min(maxDistance, this.maxDistance);
+		long[] variants = deleteVariants(s, start, end, k, new long[16]);
+		IntList hits = new IntList();
+		for (int i = 1; i <= (int) variants[0]; i++) {
+			long key = key(variants[i]);
+			int slot = LongIntMap.hash(key) & mask;
+			long probe;
+			while ((probe = keys.get(slot)) != 0 && probe != key) {
+				slot = (slot + 1) & mask;
+			}
+			if (probe == key) {
+				// Only words at most k deletions away from the variant can be within k
+				int from = starts.get(slot);
+				int to = from + lengths.get(slot * stride + k);
+				for (int p = from; p < to; p++) {
+					hits.add(postings.get(p));
+				}
+			}
+		}
+		hits.sortUnique();
+		for (int i = 0; i < hits.size(); i++) {
+			int id = hits.get(i);
+			int d = CandidateGenerator.distance(s, start, end, vocab.term(id), k);
+			if (d >= 1 && d <= k) {
+				ids.add(id);
+				distances.add(d);
+			}
+		}
+	}
+
+	/**
+	 * Computes all distinct strings made by deleting up to k chars of s[start, end),
+	 * the string itself included. Each is encoded as its hash with the low two bits
+	 * replaced by the fewest deletions that produce it (see key and deletions). The
+	 * count is stored in element 0 and the variants follow; the array is grown if
+	 * needed and returned.
+	 */
+	static long[] deleteVariants(CharSequence s, int start, int end, int k, long[] out) {
+		int n = 1;
+		out = put(out, n++, hash(s, start, end, -1, -1));
+		if (k >= 1) {
+			for (int i = start; i < end; i++) {
+				out = put(out, n++, hash(s, start, end, i, -1) | 1);
+				if (k >= 2) {
+					for (int j = i + 1; j < end; j++) {
+						out = put(out, n++, hash(s, start, end, i, j) | 2);
+					}
+				}
+			}
+		}
+		// Sorting puts the fewest deletions first among equal strings
+		Arrays.sort(out, 1, n);
+		int unique = 1;
+		for (int i = 1; i < n; i++) {
+			if (unique == 1 || key(out[i]) != key(out[unique - 1])) {
+				out[unique++] = out[i];
+			}
+		}
+		out[0] = unique - 1;
+		return out;
+	}
+
+	private static long key(long variant) {
+		return variant & ~3L;
+	}
+
+	private static int deletions(long variant) {
+		return (int) (variant & 3L);
+	}
+
+	private static long[] put(long[] out, int i, long value) {
+		if (i == out.length) {
+			out = Arrays.copyOf(out, out.length * 2);
+		}
+		out[i] = value;
+		return out;
+	}
+
+	// FNV-1a over s[start, end) without the chars at skip1 and skip2, with the low
+	// two bits cleared and never 0
+	private static long hash(CharSequence s, int start, int end, int skip1, int skip2) {
+		long h = FNV_OFFSET;
+		for (int i = start; i < end; i++) {
+			if (i != skip1 && i != skip2) {
+				h ^= s.charAt(i);
+				h *= FNV_PRIME;
+			}
+		}
+		h &= ~3L;
+		return h == 0 ? 4 : h;
+	}
+}
@@ -9,4 +9,9 @@ public class UniformCostModel implements EditCostModel {
 	public double editProbability(String original, String R, int distance) {
 		return distance > 0 ? distance * UNIFORM_LOGP : ZERO_EDIT_LOGP;
 	}
+
+	@Override
+	public double maxEditProbability(int distance) {
+		return editProbability(null, null, distance);
+	}
 }
@@ -0,0 +1,237 @@
+package edu.stanford.cs276;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import edu.stanford.cs276.util.IntList;
+import edu.stanford.cs276.util.Vocabulary;
+
+/**
+ * Trie over the language model vocabulary, searched with a bounded edit distance
+ * automaton. The lookup walks the trie depth first, keeping one row of the edit
+ * distance table per depth, and abandons a branch as soon as no extension of its
+ * prefix can come within the distance bound. The distance is the same restricted
+ * optimal string alignment distance as CandidateGenerator.distance.
+ *
+ * Nodes are numbered breadth first, so the children of a node are consecutive and
+ * the trie is just three arrays: the label and word id of each node, and where its
+ * children start. The lookup reuses per-thread rows, so a search allocates nothing
+ * beyond its results.
+ */
+public class VocabularyTrie implements CandidateEngine {
+
+	private static final int NONE = -1;
+
+	private final char[] labels;
+	private final int[] wordIds;
+	private final int[] childStart;
+	private final int maxDepth;
+
+	private final ThreadLocal<int[][]> rows = new ThreadLocal<int[][]>();
+
+	private VocabularyTrie(char[] labels, int[] wordIds, int[] childStart, int maxDepth) {
+		this.labels = labels;
+		this.wordIds = wordIds;
+		this.childStart = childStart;
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Builds the trie of every word in the vocabulary. Node 0 is the root.
+	 */
+	public static VocabularyTrie build(final Vocabulary vocab) {
+		int size = vocab.size();
+		final String[] terms = new String[size];
+		Integer[] order = new Integer[size];
+		int charCount = 0;
+		for (int id = 0; id < size; id++) {
+			terms[id] = vocab.term(id);
+			order[id] = id;
+			charCount += terms[id].length();
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return terms[a].compareTo(terms[b]);
+			}
+		});
+
+		// Each node stands for the run of sorted words that share its prefix. Nodes are
+		// expanded in the order they were created, which numbers them breadth first.
+		int capacity = charCount + 1;
+		char[] labels = new char[capacity];
+		int[] wordIds = new int[capacity];
+		int[] childStart = new int[capacity + 1];
+		int[] from = new int[capacity];
+		int[] to = new int[capacity];
+		int[] depths = new int[capacity];
+		int nodes = 1;
+		from[0] = 0;
+		to[0] = size;
+		int maxDepth = 0;
+		for (int node = 0; node < nodes; node++) {
+			int depth = depths[node];
+			int lo = from[node];
+			int hi = to[node];
+			wordIds[node] = NONE;
+			// The word equal to the prefix, if any, sorts first
+			if (lo < hi && terms[order[lo]].length() == depth) {
+				wordIds[node] = order[lo++];
+				maxDepth = Math.max(maxDepth, depth);
+			}
+			childStart[node] = nodes;
+			while (lo < hi) {
+				char c = terms[order[lo]].charAt(depth);
+				int end = lo + 1;
+				while (end < hi && terms[order[end]].charAt(depth) == c) {
+					end++;
+				}
+				labels[nodes] = c;
+				from[nodes] = lo;
+				to[nodes] = end;
+				depths[nodes] = depth + 1;
+				nodes++;
+				lo = end;
+			}
+		}
+		childStart[nodes] = nodes;
+		return new VocabularyTrie(Arrays.copyOf(labels, nodes), Arrays.copyOf(wordIds, nodes),
+				Arrays.copyOf(childStart, nodes + 1), maxDepth);
+	}
+
+	public int nodeCount() {
+		return labels.length;
+	}
+
+	@Override
+	public void lookup(CharSequence s, int start, int end, int maxDistance, IntList ids,
+			IntList distances) {
+		int n = end - start;
+		int[][] table = rows(n);
+		int inf = maxDistance + 1;
+		int[] root = table[0];
+		for (int i = 0; i <= n; i++) {
+			root[i] = Math.min(i, inf);
+		}
+		if (wordIds[0] != NONE && n >= 1 && n <= maxDistance) {
+			ids.add(wordIds[0]);
+			distances.add(n);
+		}
+		for (int child = childStart[0]; child < childStart[1]; child++) {
+			search(child, 1, (char) 0, 0, s, start, n, maxDistance, table, ids, distances);
+		}
+	}
+
+	// Fills the row for node at the given depth and descends while it can still match;
+	// the parent's label and row minimum are needed for transpositions
+	private void search(int node, int depth, char bPrev, int prevMin, CharSequence s, int start,
+			int n, int max, int[][] table, IntList ids, IntList distances) {
+		if (depth > n + max) {
+			return;
+		}
+		int inf = max + 1;
+		int[] prev = table[depth - 1];
+		int[] cur = table[depth];
+		int[] prev2 = depth >= 2 ? table[depth - 2] : null;
+		char b = labels[node];
+		boolean insertable = CandidateGenerator.inAlphabet(b);
+
+		// Cells more than max away from the diagonal are always over max, so only the
+		// band between lo and hi is computed, with a border of inf on either side
+		int lo = Math.max(1, depth - max);
+		int hi = Math.min(n, depth + max);
+		cur[lo - 1] = lo == 1 && insertable ? Math.min(prev[0] + 1, inf) : inf;
+		if (hi < n) {
+			cur[hi + 1] = inf;
+		}
+		int rowMin = cur[lo - 1];
+		for (int i = lo; i <= hi; i++) {
+			char a = s.charAt(start + i - 1);
+			int d = cur[i - 1] + 1;
+			if (a == b) {
+				d = Math.min(d, prev[i - 1]);
+			} else if (insertable) {
+				d = Math.min(d, prev[i - 1] + 1);
+			}
+			if (insertable) {
+				d = Math.min(d, prev[i] + 1);
+			}
+			if (prev2 != null && i >= 2 && a == bPrev && s.charAt(start + i - 2) == b) {
+				d = Math.min(d, prev2[i - 2] + 1);
+			}
+			cur[i] = Math.min(d, inf);
+			rowMin = Math.min(rowMin, cur[i]);
+		}
+
+		if (wordIds[node] != NONE && hi == n && cur[n] >= 1 && cur[n] <= max) {
+			ids.add(wordIds[node]);
+			distances.add(cur[n]);
+		}
+		// A transposition can still reach back to the parent row
+		if (rowMin > max && prevMin >= max) {
+			return;
+		}
+		int first = childStart[node];
+		int last = childStart[node + 1];
+		if (rowMin < max) {
+			for (int child = first; child < last; child++) {
+				search(child, depth + 1, b, rowMin, s, start, n, max, table, ids, distances);
+			}
+			return;
+		}
+		// Every cell is at least max, so only a child that matches a token char for free,
+		// or completes a transposition, can stay within max. Those labels are token chars
+		// near the diagonal; each distinct one is looked up among the sorted children.
+		int childLo = Math.max(1, depth + 1 - max);
+		int childHi = Math.min(n, depth + 1 + max);
+		int windowStart = Math.max(0, childLo - 2);
+		for (int p = windowStart; p < childHi; p++) {
+			char c = s.charAt(start + p);
+			if (seenBefore(s, start + windowStart, start + p)
+					|| !canMatch(c, b, s, start, childLo, childHi, max, prev, cur)) {
+				continue;
+			}
+			int child = Arrays.binarySearch(labels, first, last, c);
+			if (child >= 0) {
+				search(child, depth + 1, b, rowMin, s, start, n, max, table, ids, distances);
+			}
+		}
+	}
+
+	// True if the char at p also occurs in s[from, p)
+	private static boolean seenBefore(CharSequence s, int from, int p) {
+		char c = s.charAt(p);
+		for (int i = from; i < p; i++) {
+			if (s.charAt(i) == c) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// True if a child labelled c below a node labelled b, whose rows are prev and cur,
+	// has a row cell within max
+	private static boolean canMatch(char c, char b, CharSequence s, int start, int lo, int hi,
+			int max, int[] prev, int[] cur) {
+		for (int i = lo; i <= hi; i++) {
+			char a = s.charAt(start + i - 1);
+			if (a == c && cur[i - 1] <= max) {
+				return true;
+			}
+			if (i >= 2 && a == b && s.charAt(start + i - 2) == c && prev[i - 2] < max) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// One row per depth, reused by every lookup on this thread
+	private int[][] rows(int n) {
+		int[][] table = rows.get();
+		if (table == null || table[0].length < n + 1) {
+			table = new int[maxDepth + 1][n + 1];
+			rows.set(table);
+		}
+		return table;
+	}
+}
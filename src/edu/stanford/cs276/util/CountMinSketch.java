@@ -0,0 +1,88 @@
+package edu.stanford.cs276.util;
+
+/**
+ * Count-Min sketch of counts under long keys, in depth rows of width int counters.
+ * A key has one counter in each row, picked by a hash seeded per row, and its
+ * estimate is the smallest of them: never below the true count, and above it only
+ * by the counts of the keys that share all of its counters. Adding uses
+ * conservative update, raising only the counters that hold the current minimum,
+ * which keeps the estimates closer. Not safe for concurrent adds; sketches filled
+ * separately can be merged, which still never underestimates.
+ */
+public class CountMinSketch {
+
+	private final int width;
+	private final int depth;
+	private final int[] counters;
+	private final int[] slots;
+
+	public CountMinSketch(int width, int depth) {
+		if (width < 1 || depth < 1 || (long) width * depth > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("width and depth must be at least 1, with at most "
+					+ Integer.MAX_VALUE + " counters in all");
+		}
+		this.width = width;
+		this.depth = depth;
+		counters = new int[width * depth];
+		slots = new int[depth];
+	}
+
+	public int width() {
+		return width;
+	}
+
+	public int depth() {
+		return depth;
+	}
+
+	/**
+	 * Bytes taken by the counters.
+	 */
+	public long memoryBytes() {
+		return 4L * counters.length;
+	}
+
+	// Counter of key in the given row
+	private int slot(long key, int row) {
+		long h = (key + (row + 1) * 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+		h ^= h >>> 31;
+		return row * width + (int) ((h >>> 1) % width);
+	}
+
+	public void add(long key) {
+		int min = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			slots[row] = slot(key, row);
+			min = Math.min(min, counters[slots[row]]);
+		}
+		if (min == Integer.MAX_VALUE) {
+			return;
+		}
+		for (int row = 0; row < depth; row++) {
+			if (counters[slots[row]] == min) {
+				counters[slots[row]] = min + 1;
+			}
+		}
+	}
+
+	public int estimate(long key) {
+		int min = Integer.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			min = Math.min(min, counters[slot(key, row)]);
+		}
+		return min;
+	}
+
+	/**
+	 * Adds the counters of another sketch of the same shape.
+	 */
+	public void merge(CountMinSketch other) {
+		if (other.width != width || other.depth != depth) {
+			throw new IllegalArgumentException("Sketches differ in shape");
+		}
+		for (int i = 0; i < counters.length; i++) {
+			long sum = (long) counters[i] + other.counters[i];
+			counters[i] = (int) Math.min(sum, Integer.MAX_VALUE);
+		}
+	}
+}
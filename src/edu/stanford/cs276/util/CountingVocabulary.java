@@ -0,0 +1,59 @@
+package edu.stanford.cs276.util;
+
+/**
+ * Vocabulary that counts the id lookups each thread makes through it, for
+ * instrumentation. Every other call goes straight to the wrapped vocabulary.
+ */
+public class CountingVocabulary implements Vocabulary {
+
+	private final Vocabulary vocab;
+	private final ThreadLocal<long[]> lookups = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	public CountingVocabulary(Vocabulary vocab) {
+		this.vocab = vocab;
+	}
+
+	/**
+	 * Lookups made by the current thread so far.
+	 */
+	public long lookups() {
+		return lookups.get()[0];
+	}
+
+	@Override
+	public int id(CharSequence s, int start, int end) {
+		lookups.get()[0]++;
+		return vocab.id(s, start, end);
+	}
+
+	@Override
+	public int count(int id) {
+		return vocab.count(id);
+	}
+
+	@Override
+	public int count(String term) {
+		lookups.get()[0]++;
+		return vocab.count(term);
+	}
+
+	@Override
+	public String term(int id) {
+		return vocab.term(id);
+	}
+
+	@Override
+	public int size() {
+		return vocab.size();
+	}
+
+	@Override
+	public int termCount() {
+		return vocab.termCount();
+	}
+}
@@ -1,38 +1,223 @@
 package edu.stanford.cs276.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.Arrays;
 
-public class Dictionary implements Serializable {
+/**
+ * Counts occurrences of terms. Every distinct term is interned to a dense int id
+ * (0, 1, 2, ... in insertion order) and its count lives in a primitive array indexed
+ * by that id. Terms are found through an open-addressing table, so lookups can be
+ * made on any CharSequence range without building a String.
+ */
+public class Dictionary implements Vocabulary, Serializable {
+
+	private static final int EMPTY = -1;
+	private static final float LOAD_FACTOR = 0.6f;
 
 	private int termCount;
-	private HashMap<String, Integer> map;
+	private int size;
+	private transient String[] terms;
+	private transient int[] hashes;
+	private transient int[] counts;
+	private transient int[] table;
+	private transient int mask;
 
 	public int termCount() {
 		return termCount;
 	}
 
 	public Dictionary() {
+		this(16);
+	}
+
+	public Dictionary(int expectedSize) {
 		termCount = 0;
-		map = new HashMap<String, Integer>();
+		size = 0;
+		int capacity = tableSizeFor(expectedSize);
+		terms = new String[capacity];
+		hashes = new int[capacity];
+		counts = new int[capacity];
+		table = new int[capacity * 2];
+		Arrays.fill(table, EMPTY);
+		mask = table.length - 1;
 	}
 
-	public void add(String term) {
+	/**
+	 * Adds one occurrence of the term and returns its id.
+	 */
+	public int add(String term) {
+		return add(term, 1);
+	}
 
-		termCount++;
-		if (map.containsKey(term)) {
-			map.put(term, map.get(term) + 1);
-		} else {
-			map.put(term, 1);
+	/**
+	 * Adds n occurrences of the term and returns its id.
+	 */
+	public int add(String term, int n) {
+		int h = term.hashCode();
+		int slot = findSlot(term, 0, term.length(), h);
+		int id = table[slot];
+		if (id == EMPTY) {
+			id = insert(term, h, slot);
+		}
+		counts[id] += n;
+		termCount += n;
+		return id;
+	}
+
+	/**
+	 * Adds one occurrence of the term s[start, end). A String is only created the
+	 * first time the term is seen.
+	 */
+	public int add(CharSequence s, int start, int end) {
+		int h = hash(s, start, end);
+		int slot = findSlot(s, start, end, h);
+		int id = table[slot];
+		if (id == EMPTY) {
+			id = insert(s.subSequence(start, end).toString(), h, slot);
 		}
+		counts[id]++;
+		termCount++;
+		return id;
 	}
 
 	public int count(String term) {
+		return count(id(term, 0, term.length()));
+	}
+
+	public int count(CharSequence s, int start, int end) {
+		return count(id(s, start, end));
+	}
+
+	/**
+	 * Returns the count of the term with the given id, or 0 for an id of -1.
+	 */
+	public int count(int id) {
+		return id < 0 ? 0 : counts[id];
+	}
+
+	public int id(CharSequence s) {
+		return id(s, 0, s.length());
+	}
+
+	/**
+	 * Returns the id of the term s[start, end), or -1 if it has never been added.
+	 */
+	public int id(CharSequence s, int start, int end) {
+		return table[findSlot(s, start, end, hash(s, start, end))];
+	}
+
+	public String term(int id) {
+		return terms[id];
+	}
+
+	/**
+	 * Number of distinct terms, which is also one past the largest id.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Same value as String.hashCode() over s[start, end).
+	 */
+	public static int hash(CharSequence s, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			h = 31 * h + s.charAt(i);
+		}
+		return h;
+	}
+
+	static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int findSlot(CharSequence s, int start, int end, int h) {
+		int slot = mix(h) & mask;
+		while (true) {
+			int id = table[slot];
+			if (id == EMPTY || (hashes[id] == h && equals(terms[id], s, start, end))) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static boolean equals(String term, CharSequence s, int start, int end) {
+		int len = end - start;
+		if (term.length() != len) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (term.charAt(i) != s.charAt(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int insert(String term, int h, int slot) {
+		int id = size++;
+		if (id == terms.length) {
+			int capacity = terms.length * 2;
+			terms = Arrays.copyOf(terms, capacity);
+			hashes = Arrays.copyOf(hashes, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+		}
+		terms[id] = term;
+		hashes[id] = h;
+		table[slot] = id;
+		if (size > table.length * LOAD_FACTOR) {
+			rehash(table.length * 2);
+		}
+		return id;
+	}
+
+	private void rehash(int tableSize) {
+		table = new int[tableSize];
+		Arrays.fill(table, EMPTY);
+		mask = tableSize - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = mix(hashes[id]) & mask;
+			while (table[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id;
+		}
+	}
+
+	// Only the terms and counts are written; the hash table is rebuilt on load
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		for (int id = 0; id < size; id++) {
+			out.writeUTF(terms[id]);
+			out.writeInt(counts[id]);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int capacity = tableSizeFor(size);
+		terms = new String[capacity];
+		hashes = new int[capacity];
+		counts = new int[capacity];
+		for (int id = 0; id < size; id++) {
+			terms[id] = in.readUTF();
+			hashes[id] = terms[id].hashCode();
+			counts[id] = in.readInt();
+		}
+		rehash(tableSizeFor((int) (size / LOAD_FACTOR) + 1));
+	}
 
-		if (map.containsKey(term)) {
-			return map.get(term);
-		} else {
-			return 0;
+	private static int tableSizeFor(int n) {
+		int capacity = 16;
+		while (capacity < n) {
+			capacity <<= 1;
 		}
+		return capacity;
 	}
 }
@@ -0,0 +1,269 @@
+package edu.stanford.cs276.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Vocabulary read in place from a model file section that stores the sorted terms
+ * front-coded: in blocks of BLOCK terms, each term is written as the number of
+ * leading chars it shares with the one before, then the rest. Chars are varints,
+ * one byte each for ASCII. Counts and hashes sit in arrays by id, and ids are found
+ * through an open-addressing table, as in MappedVocabulary, so a lookup of an
+ * absent term rarely reads any term data; a present one decodes at most BLOCK - 1
+ * terms ahead of it. The section layout is:
+ *
+ *   int FORMAT (-1, where MappedVocabulary has its size), int size, int termCount,
+ *   int tableSize, int dataLength
+ *   int[size]                  counts
+ *   int[size]                  term hashes (String.hashCode)
+ *   int[ceil(size / BLOCK)]    offset of each block into the data
+ *   int[tableSize]             open-addressing table of ids, -1 for a free slot
+ *   byte[dataLength]           per term: varint shared prefix length, varint byte
+ *                              length of the rest, the rest as varint chars
+ */
+public class FrontCodedVocabulary implements Vocabulary {
+
+	public static final int FORMAT = -1;
+	private static final int BLOCK = 8;
+
+	private final int size;
+	private final int termCount;
+	private final int mask;
+	private final IntBuffer counts;
+	private final IntBuffer hashes;
+	private final IntBuffer blocks;
+	private final IntBuffer table;
+	private final ByteBuffer data;
+
+	public FrontCodedVocabulary(ByteBuffer section) {
+		ByteBuffer buf = section.duplicate();
+		if (buf.getInt() != FORMAT) {
+			throw new IllegalArgumentException("Not a front-coded vocabulary section");
+		}
+		size = buf.getInt();
+		termCount = buf.getInt();
+		int tableSize = buf.getInt();
+		int dataLength = buf.getInt();
+		mask = tableSize - 1;
+		counts = ModelFile.slice(buf, 4 * size).asIntBuffer();
+		hashes = ModelFile.slice(buf, 4 * size).asIntBuffer();
+		blocks = ModelFile.slice(buf, 4 * ((size + BLOCK - 1) / BLOCK)).asIntBuffer();
+		table = ModelFile.slice(buf, 4 * tableSize).asIntBuffer();
+		data = ModelFile.slice(buf, dataLength);
+	}
+
+	/**
+	 * Returns true if the section was written by write(), false if it is a
+	 * MappedVocabulary section.
+	 */
+	public static boolean isFrontCoded(ByteBuffer section) {
+		return section.getInt(section.position()) == FORMAT;
+	}
+
+	/**
+	 * Opens a vocabulary section in either layout.
+	 */
+	public static Vocabulary open(ByteBuffer section) {
+		return isFrontCoded(section) ? new FrontCodedVocabulary(section)
+				: new MappedVocabulary(section);
+	}
+
+	@Override
+	public int id(CharSequence s, int start, int end) {
+		int h = Dictionary.hash(s, start, end);
+		int slot = Dictionary.mix(h) & mask;
+		while (true) {
+			int id = table.get(slot);
+			if (id < 0 || (hashes.get(id) == h && matches(id, s, start, end))) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	// Decodes the block of id up to id, keeping only the length of the prefix each
+	// term shares with the query: a term that shares more of the one before than the
+	// one before shares of the query cannot share more of the query either, so its
+	// chars need not be read.
+	private boolean matches(int id, CharSequence s, int start, int end) {
+		int length = end - start;
+		int pos = blocks.get(id / BLOCK);
+		int matched = 0;
+		for (int j = id - id % BLOCK; j <= id; j++) {
+			int prefix = readVarint(pos);
+			pos += varintLength(prefix);
+			int restBytes = readVarint(pos);
+			pos += varintLength(restBytes);
+			int restEnd = pos + restBytes;
+			if (prefix < matched) {
+				matched = prefix;
+			} else if (prefix == matched) {
+				int i = matched;
+				while (pos < restEnd && i < length) {
+					int c = readVarint(pos);
+					if (c != s.charAt(start + i)) {
+						break;
+					}
+					pos += varintLength(c);
+					i++;
+				}
+				if (j == id) {
+					return i == length && pos == restEnd;
+				}
+				matched = i;
+			} else if (j == id) {
+				return false;
+			}
+			pos = restEnd;
+		}
+		return false;
+	}
+
+	@Override
+	public int count(int id) {
+		return id < 0 ? 0 : counts.get(id);
+	}
+
+	@Override
+	public int count(String term) {
+		return count(id(term, 0, term.length()));
+	}
+
+	@Override
+	public String term(int id) {
+		StringBuilder term = new StringBuilder();
+		int pos = blocks.get(id / BLOCK);
+		for (int j = id - id % BLOCK; j <= id; j++) {
+			int prefix = readVarint(pos);
+			pos += varintLength(prefix);
+			int restBytes = readVarint(pos);
+			pos += varintLength(restBytes);
+			int restEnd = pos + restBytes;
+			term.setLength(prefix);
+			while (pos < restEnd) {
+				int c = readVarint(pos);
+				term.append((char) c);
+				pos += varintLength(c);
+			}
+		}
+		return term.toString();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int termCount() {
+		return termCount;
+	}
+
+	private int readVarint(int pos) {
+		int b = data.get(pos);
+		if (b >= 0) {
+			return b;
+		}
+		int value = b & 0x7f;
+		for (int shift = 7; ; shift += 7) {
+			b = data.get(++pos);
+			value |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	private static int varintLength(int value) {
+		int length = 1;
+		while ((value >>>= 7) != 0) {
+			length++;
+		}
+		return length;
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Writes the vocabulary as a section in the layout above. Terms are sorted as
+	 * by MappedVocabulary.write, so they get the same new ids; the returned array
+	 * maps each old id to its new one.
+	 */
+	public static int[] write(Vocabulary vocab, DataOutputStream out) throws IOException {
+		int size = vocab.size();
+		int[] remap = MappedVocabulary.sortedIds(vocab);
+		int[] order = new int[size];
+		for (int id = 0; id < size; id++) {
+			order[remap[id]] = id;
+		}
+
+		int[] blockOffsets = new int[(size + BLOCK - 1) / BLOCK];
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		ByteArrayOutputStream rest = new ByteArrayOutputStream();
+		String previous = "";
+		for (int newId = 0; newId < size; newId++) {
+			String term = vocab.term(order[newId]);
+			int prefix = 0;
+			if (newId % BLOCK == 0) {
+				blockOffsets[newId / BLOCK] = data.size();
+			} else {
+				int max = Math.min(term.length(), previous.length());
+				while (prefix < max && term.charAt(prefix) == previous.charAt(prefix)) {
+					prefix++;
+				}
+			}
+			rest.reset();
+			for (int i = prefix; i < term.length(); i++) {
+				writeVarint(rest, term.charAt(i));
+			}
+			writeVarint(data, prefix);
+			writeVarint(data, rest.size());
+			rest.writeTo(data);
+			previous = term;
+		}
+
+		int tableSize = 16;
+		while (tableSize < 2 * size) {
+			tableSize <<= 1;
+		}
+		int[] table = new int[tableSize];
+		Arrays.fill(table, -1);
+		for (int newId = 0; newId < size; newId++) {
+			int slot = Dictionary.mix(vocab.term(order[newId]).hashCode()) & (tableSize - 1);
+			while (table[slot] >= 0) {
+				slot = (slot + 1) & (tableSize - 1);
+			}
+			table[slot] = newId;
+		}
+
+		out.writeInt(FORMAT);
+		out.writeInt(size);
+		out.writeInt(vocab.termCount());
+		out.writeInt(tableSize);
+		out.writeInt(data.size());
+		for (int newId = 0; newId < size; newId++) {
+			out.writeInt(vocab.count(order[newId]));
+		}
+		for (int newId = 0; newId < size; newId++) {
+			out.writeInt(vocab.term(order[newId]).hashCode());
+		}
+		for (int offset : blockOffsets) {
+			out.writeInt(offset);
+		}
+		for (int slot : table) {
+			out.writeInt(slot);
+		}
+		data.writeTo(out);
+		return remap;
+	}
+}
@@ -0,0 +1,109 @@
+package edu.stanford.cs276.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative long values in log-linear buckets, in the manner of
+ * HdrHistogram: values below 128 get a bucket each, and every power of two above
+ * that is split into 64 equal buckets, so a percentile is read back within 1.6% of
+ * the recorded value whatever its magnitude, from a fixed 3712 counters. Recording
+ * is lock-free and may be done from any number of threads at once.
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Values below this get a bucket each
+	private static final int LINEAR = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative value " + value);
+		}
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+		}
+	}
+
+	// Bucket of a value: its top 7 bits, and how far they were shifted down
+	private static int bucket(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * Smallest value that falls in bucket i.
+	 */
+	public static long bucketLow(int i) {
+		if (i < LINEAR) {
+			return i;
+		}
+		int shift = (i - LINEAR) / SUB_BUCKETS + 1;
+		return (long) ((i - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+
+	/**
+	 * Largest value that falls in bucket i.
+	 */
+	public static long bucketHigh(int i) {
+		return i + 1 < BUCKETS ? bucketLow(i + 1) - 1 : Long.MAX_VALUE;
+	}
+
+	public static int buckets() {
+		return BUCKETS;
+	}
+
+	/**
+	 * Values recorded in bucket i.
+	 */
+	public long countAt(int i) {
+		return counts.get(i);
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public double mean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Returns the value below or at which the given percent of the recorded values
+	 * fall: the top of the bucket holding the value of that rank, but no more than
+	 * the largest value recorded. Returns 0 if nothing was recorded.
+	 */
+	public long percentile(double percent) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(bucketHigh(i), max.get());
+			}
+		}
+		return max.get();
+	}
+}
@@ -0,0 +1,168 @@
+package edu.stanford.cs276.util;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Record of the input files a model was counted from, kept in the model file so
+ * that an update counts only what was added to its inputs since. A file is known by
+ * its canonical path, so files of the same name in other directories are told
+ * apart, and a file moved since is counted as a new one. The record holds how many
+ * of its bytes were counted and a CRC32 of the last of those bytes. New files are
+ * counted whole; a file that grew is counted from where the last count stopped,
+ * once that tail is found unchanged. Checking the tail rather than the whole file
+ * keeps the cost of an update in proportion to the new data. The section layout is:
+ *
+ *   int FORMAT (-2), int count
+ *   count x (int pathLength, char[pathLength] path, long length, long tailCrc)
+ *
+ * Records saved before files were known by path have no FORMAT and hold bare file
+ * names, which cannot be told apart; a model with one must be rebuilt to be updated.
+ */
+public class IngestedInputs {
+
+	public static final int FORMAT = -2;
+	private static final int TAIL_BYTES = 64 << 10;
+
+	// Canonical path -> {bytes counted, CRC32 of the last TAIL_BYTES of them}
+	private final Map<String, long[]> files = new TreeMap<String, long[]>();
+	// Whether the files are known only by name, as in records saved before FORMAT
+	private final boolean byName;
+
+	public IngestedInputs() {
+		byName = false;
+	}
+
+	public IngestedInputs(ByteBuffer section) {
+		ByteBuffer buf = section.duplicate();
+		int count = buf.getInt();
+		byName = count != FORMAT;
+		if (!byName) {
+			count = buf.getInt();
+		}
+		for (int i = 0; i < count; i++) {
+			char[] name = new char[buf.getInt()];
+			for (int j = 0; j < name.length; j++) {
+				name[j] = buf.getChar();
+			}
+			files.put(new String(name), new long[] {buf.getLong(), buf.getLong()});
+		}
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(FORMAT);
+		out.writeInt(files.size());
+		for (Map.Entry<String, long[]> file : files.entrySet()) {
+			out.writeInt(file.getKey().length());
+			out.writeChars(file.getKey());
+			out.writeLong(file.getValue()[0]);
+			out.writeLong(file.getValue()[1]);
+		}
+	}
+
+	public int size() {
+		return files.size();
+	}
+
+	/**
+	 * Returns how many bytes of the file were already counted, 0 for a file never
+	 * seen. Throws if the counted bytes were changed since, or if the file grew
+	 * after a last line with no line break, which the count has already read.
+	 */
+	public long counted(File file) throws Exception {
+		if (byName) {
+			throw new Exception("The saved model records the files it was counted from by name only,"
+					+ " which files in other directories can share; rebuild it without --update");
+		}
+		long[] record = files.get(file.getCanonicalPath());
+		if (record == null) {
+			return 0;
+		}
+		long counted = record[0];
+		long length = file.length();
+		if (length < counted || tailCrc(file, counted) != record[1]) {
+			throw new Exception(file + " was changed since it was counted; only new files and lines"
+					+ " appended to counted ones can be added, so rebuild without --update");
+		}
+		if (length > counted && counted > 0 && lastByte(file, counted) != '\n') {
+			throw new Exception(file + " grew after a last line that had no line break;"
+					+ " rebuild without --update");
+		}
+		return counted;
+	}
+
+	/**
+	 * Records that the first length bytes of the file have been counted.
+	 */
+	public void record(File file, long length) throws IOException {
+		files.put(file.getCanonicalPath(), new long[] {length, tailCrc(file, length)});
+	}
+
+	/**
+	 * Opens bytes [from, to) of the file.
+	 */
+	public static InputStream open(File file, long from, final long to) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		in.getChannel().position(from);
+		final long[] position = {from};
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				if (position[0] >= to) {
+					return -1;
+				}
+				int b = super.read();
+				if (b >= 0) {
+					position[0]++;
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (position[0] >= to) {
+					return -1;
+				}
+				int n = super.read(b, off, (int) Math.min(len, to - position[0]));
+				if (n > 0) {
+					position[0] += n;
+				}
+				return n;
+			}
+		};
+	}
+
+	// CRC32 of the last TAIL_BYTES bytes before end
+	private static long tailCrc(File file, long end) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] tail = new byte[(int) Math.min(end, TAIL_BYTES)];
+			in.seek(end - tail.length);
+			in.readFully(tail);
+			CRC32 crc = new CRC32();
+			crc.update(tail);
+			return crc.getValue();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int lastByte(File file, long end) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.seek(end - 1);
+			return in.read();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package edu.stanford.cs276.util;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints.
+ */
+public class IntList {
+
+	private int[] values;
+	private int size;
+
+	public IntList() {
+		this(16);
+	}
+
+	public IntList(int capacity) {
+		values = new int[Math.max(capacity, 1)];
+	}
+
+	public void add(int value) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = value;
+	}
+
+	public int get(int i) {
+		return values[i];
+	}
+
+	public void set(int i, int value) {
+		values[i] = value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Sorts the list and removes repeated values.
+	 */
+	public void sortUnique() {
+		Arrays.sort(values, 0, size);
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (n == 0 || values[i] != values[n - 1]) {
+				values[n++] = values[i];
+			}
+		}
+		size = n;
+	}
+}
@@ -0,0 +1,38 @@
+package edu.stanford.cs276.util;
+
+/**
+ * Read access to a table of int values stored under long keys.
+ */
+public interface LongIntLookup {
+
+	/**
+	 * Returns the value stored under key, or 0 if the key is absent.
+	 */
+	public int get(long key);
+
+	public int size();
+
+	/**
+	 * Returns the slot that holds key, or -1 if the key is absent. Slots are numbered
+	 * 0 to tableSize(), where slot tableSize() is reserved for the key 0, so callers
+	 * can keep extra per-entry data in a parallel array.
+	 */
+	public int slotOf(long key);
+
+	public int tableSize();
+
+	/**
+	 * The key in a slot, 0 for a free slot and for the slot reserved for the key 0.
+	 */
+	public long keyAt(int slot);
+
+	/**
+	 * The value in a slot, 0 for a free slot.
+	 */
+	public int valueAt(int slot);
+
+	/**
+	 * Returns all keys in ascending order.
+	 */
+	public long[] sortedKeys();
+}
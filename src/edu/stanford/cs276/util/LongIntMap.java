@@ -0,0 +1,202 @@
+package edu.stanford.cs276.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from long keys to int counts. Keys and values sit in two
+ * parallel primitive arrays, so nothing is boxed. The key 0 is used to mark free
+ * slots and is therefore stored separately.
+ */
+public class LongIntMap implements LongIntLookup {
+
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private long[] keys;
+	private int[] values;
+	private int size;
+	private int mask;
+	private boolean hasZeroKey;
+	private int zeroValue;
+
+	public LongIntMap() {
+		this(16);
+	}
+
+	public LongIntMap(int expectedSize) {
+		init(expectedSize);
+	}
+
+	/**
+	 * Table size of a map created for expectedSize keys, which holds that many
+	 * without growing.
+	 */
+	public static long capacityFor(long expectedSize) {
+		long capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Most keys a table of the given size holds before it grows.
+	 */
+	public static int maxSizeFor(int capacity) {
+		return (int) (capacity * LOAD_FACTOR);
+	}
+
+	private void init(int expectedSize) {
+		int capacity = (int) capacityFor(expectedSize);
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		size = 0;
+		hasZeroKey = false;
+		zeroValue = 0;
+	}
+
+	public void add(long key) {
+		add(key, 1);
+	}
+
+	/**
+	 * Adds n to the value stored under key, inserting the key if it is new.
+	 */
+	public void add(long key, int n) {
+		if (key == 0) {
+			if (!hasZeroKey) {
+				hasZeroKey = true;
+				size++;
+			}
+			zeroValue += n;
+			return;
+		}
+		int slot = slot(key);
+		if (keys[slot] == 0) {
+			keys[slot] = key;
+			size++;
+			if (size > keys.length * LOAD_FACTOR) {
+				values[slot] = n;
+				rehash(keys.length * 2);
+				return;
+			}
+		}
+		values[slot] += n;
+	}
+
+	/**
+	 * Removes every key, keeping the table at its current size.
+	 */
+	public void clear() {
+		Arrays.fill(keys, 0);
+		Arrays.fill(values, 0);
+		size = 0;
+		hasZeroKey = false;
+		zeroValue = 0;
+	}
+
+	/**
+	 * Returns the value stored under key, or 0 if the key is absent.
+	 */
+	public int get(long key) {
+		if (key == 0) {
+			return zeroValue;
+		}
+		return values[slot(key)];
+	}
+
+	public int slotOf(long key) {
+		if (key == 0) {
+			return hasZeroKey ? keys.length : -1;
+		}
+		int slot = slot(key);
+		return keys[slot] != 0 ? slot : -1;
+	}
+
+	public int tableSize() {
+		return keys.length;
+	}
+
+	public long keyAt(int slot) {
+		return slot == keys.length ? 0 : keys[slot];
+	}
+
+	public int valueAt(int slot) {
+		return slot == keys.length ? zeroValue : values[slot];
+	}
+
+	public boolean containsKey(long key) {
+		if (key == 0) {
+			return hasZeroKey;
+		}
+		return keys[slot(key)] != 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns all keys in ascending order.
+	 */
+	public long[] sortedKeys() {
+		long[] result = new long[size];
+		int n = 0;
+		if (hasZeroKey) {
+			result[n++] = 0;
+		}
+		for (long key : keys) {
+			if (key != 0) {
+				result[n++] = key;
+			}
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Writes the table as a section that MappedLongIntMap reads in place.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(size);
+		out.writeInt(keys.length);
+		out.writeInt(hasZeroKey ? 1 : 0);
+		out.writeInt(zeroValue);
+		for (long key : keys) {
+			out.writeLong(key);
+		}
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	public static int hash(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32));
+	}
+
+	private int slot(long key) {
+		int slot = hash(key) & mask;
+		while (keys[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
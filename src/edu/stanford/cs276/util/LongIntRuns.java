@@ -0,0 +1,253 @@
+package edu.stanford.cs276.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Counts under long keys kept on disk as sorted runs, for tables too large for the
+ * heap. A run is a temporary file of (long key, int count) entries in ascending key
+ * order, each key once; runs are spilled from a LongIntMap and merged back k ways
+ * at a time, adding up the counts of equal keys, until one run is left. Spilling
+ * may be done from several threads at once.
+ */
+public class LongIntRuns {
+
+	// Runs merged at once, which bounds the read buffers open during a merge
+	private static final int FAN_IN = 64;
+	private static final int BUFFER_SIZE = 64 << 10;
+
+	private final File dir;
+	private final List<Run> runs = new ArrayList<Run>();
+	private long spilledEntries;
+
+	/**
+	 * Keeps the runs in dir, or in the default temporary directory if dir is null.
+	 */
+	public LongIntRuns(File dir) {
+		this.dir = dir;
+	}
+
+	private static class Run {
+		final File file;
+		final long entries;
+
+		Run(File file, long entries) {
+			this.file = file;
+			this.entries = entries;
+		}
+	}
+
+	/**
+	 * Writes the entries of the map as a new run. The map is left as it was.
+	 */
+	public void spill(LongIntMap map) throws IOException {
+		long[] keys = map.sortedKeys();
+		File file = File.createTempFile("bigrams", ".run", dir);
+		file.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), BUFFER_SIZE));
+		try {
+			for (long key : keys) {
+				out.writeLong(key);
+				out.writeInt(map.get(key));
+			}
+		} finally {
+			out.close();
+		}
+		synchronized (runs) {
+			runs.add(new Run(file, keys.length));
+			spilledEntries += keys.length;
+		}
+	}
+
+	public File directory() {
+		return dir != null ? dir : new File(System.getProperty("java.io.tmpdir"));
+	}
+
+	public int runCount() {
+		synchronized (runs) {
+			return runs.size();
+		}
+	}
+
+	/**
+	 * Entries written by spill(), counting a key again for every run it is in.
+	 */
+	public long spilledEntries() {
+		synchronized (runs) {
+			return spilledEntries;
+		}
+	}
+
+	/**
+	 * Merges all runs into one, dropping the keys whose total count is below
+	 * minCount, and returns the number of entries left.
+	 */
+	public long merge(int minCount) throws IOException {
+		synchronized (runs) {
+			while (runs.size() > FAN_IN) {
+				List<Run> group = new ArrayList<Run>(runs.subList(0, FAN_IN));
+				runs.subList(0, FAN_IN).clear();
+				runs.add(merge(group, 1));
+			}
+			if (runs.size() != 1 || minCount > 1) {
+				List<Run> group = new ArrayList<Run>(runs);
+				runs.clear();
+				runs.add(merge(group, minCount));
+			}
+			return runs.get(0).entries;
+		}
+	}
+
+	// Merges the runs into a new one and deletes them
+	private Run merge(List<Run> group, int minCount) throws IOException {
+		File file = File.createTempFile("bigrams", ".run", dir);
+		file.deleteOnExit();
+		long entries = 0;
+		Cursor cursor = new Cursor(group);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), BUFFER_SIZE));
+		try {
+			while (cursor.next()) {
+				if (cursor.count() >= minCount) {
+					out.writeLong(cursor.key());
+					out.writeInt(cursor.count());
+					entries++;
+				}
+			}
+		} finally {
+			out.close();
+			cursor.close();
+		}
+		for (Run run : group) {
+			run.file.delete();
+		}
+		return new Run(file, entries);
+	}
+
+	/**
+	 * Reads the entries of all runs in ascending key order, each key once.
+	 */
+	public Cursor cursor() throws IOException {
+		synchronized (runs) {
+			return new Cursor(new ArrayList<Run>(runs));
+		}
+	}
+
+	/**
+	 * Deletes the files of all runs.
+	 */
+	public void delete() {
+		synchronized (runs) {
+			for (Run run : runs) {
+				run.file.delete();
+			}
+			runs.clear();
+		}
+	}
+
+	// The next entry of one run
+	private static class Head {
+		final DataInputStream in;
+		long left;
+		long key;
+		int count;
+
+		Head(Run run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file),
+					BUFFER_SIZE));
+			left = run.entries;
+		}
+
+		boolean advance() throws IOException {
+			if (left == 0) {
+				return false;
+			}
+			left--;
+			key = in.readLong();
+			count = in.readInt();
+			return true;
+		}
+	}
+
+	private static final Comparator<Head> BY_KEY = new Comparator<Head>() {
+		@Override
+		public int compare(Head a, Head b) {
+			return Long.compare(a.key, b.key);
+		}
+	};
+
+	/**
+	 * Merged view of a set of runs.
+	 */
+	public static class Cursor {
+		private final List<Head> heads = new ArrayList<Head>();
+		private final PriorityQueue<Head> queue;
+		private long key;
+		private int count;
+
+		private Cursor(List<Run> runs) throws IOException {
+			queue = new PriorityQueue<Head>(Math.max(1, runs.size()), BY_KEY);
+			try {
+				for (Run run : runs) {
+					Head head = new Head(run);
+					heads.add(head);
+					if (head.advance()) {
+						queue.add(head);
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Moves to the next key, returning false after the last one.
+		 */
+		public boolean next() throws IOException {
+			Head head = queue.poll();
+			if (head == null) {
+				return false;
+			}
+			key = head.key;
+			long total = 0;
+			while (true) {
+				total += head.count;
+				if (head.advance()) {
+					queue.add(head);
+				}
+				if (queue.isEmpty() || queue.peek().key != key) {
+					break;
+				}
+				head = queue.poll();
+			}
+			count = (int) Math.min(total, Integer.MAX_VALUE);
+			return true;
+		}
+
+		public long key() {
+			return key;
+		}
+
+		public int count() {
+			return count;
+		}
+
+		public void close() throws IOException {
+			for (Head head : heads) {
+				head.in.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package edu.stanford.cs276.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing set of longs in one primitive array, so nothing is boxed. The
+ * key 0 is used to mark free slots and is therefore tracked separately.
+ */
+public class LongSet {
+
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private long[] keys;
+	private int size;
+	private int mask;
+	private boolean hasZeroKey;
+
+	public LongSet() {
+		this(16);
+	}
+
+	public LongSet(int expectedSize) {
+		int capacity = (int) LongIntMap.capacityFor(expectedSize);
+		keys = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Adds key, returning false if it was already in the set.
+	 */
+	public boolean add(long key) {
+		if (key == 0) {
+			if (hasZeroKey) {
+				return false;
+			}
+			hasZeroKey = true;
+			size++;
+			return true;
+		}
+		int slot = slot(key);
+		if (keys[slot] != 0) {
+			return false;
+		}
+		keys[slot] = key;
+		size++;
+		if (size > keys.length * LOAD_FACTOR) {
+			rehash(keys.length * 2);
+		}
+		return true;
+	}
+
+	public boolean contains(long key) {
+		if (key == 0) {
+			return hasZeroKey;
+		}
+		return keys[slot(key)] != 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes every key, keeping the table at its current size.
+	 */
+	public void clear() {
+		Arrays.fill(keys, 0);
+		size = 0;
+		hasZeroKey = false;
+	}
+
+	private int slot(long key) {
+		int slot = LongIntMap.hash(key) & mask;
+		while (keys[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		keys = new long[capacity];
+		mask = capacity - 1;
+		for (long key : oldKeys) {
+			if (key != 0) {
+				keys[slot(key)] = key;
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package edu.stanford.cs276.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded map that evicts the least recently used entry, safe for concurrent use.
+ * Keys are spread over independently locked segments, each holding an equal share
+ * of the capacity and evicting its own least recently used entry, so threads rarely
+ * wait on each other. Hits, misses and evictions are counted.
+ */
+public class LruCache<K, V> {
+
+	private static final int MAX_SEGMENTS = 16;
+
+	private final Segment<K, V>[] segments;
+	private final int capacity;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public LruCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		this.capacity = capacity;
+		int count = 1;
+		while (count < MAX_SEGMENTS && count * 2 <= capacity) {
+			count <<= 1;
+		}
+		segments = newSegments(count);
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment<K, V>(capacity / count + (i < capacity % count ? 1 : 0),
+					evictions);
+		}
+	}
+
+	// Arrays of a generic type can only be made raw
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static <K, V> Segment<K, V>[] newSegments(int count) {
+		return new Segment[count];
+	}
+
+	private Segment<K, V> segment(Object key) {
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+	}
+
+	/**
+	 * Returns the value cached for key, or null, and marks it as recently used.
+	 */
+	public V get(K key) {
+		Segment<K, V> segment = segment(key);
+		V value;
+		synchronized (segment) {
+			value = segment.get(key);
+		}
+		(value != null ? hits : misses).incrementAndGet();
+		return value;
+	}
+
+	public void put(K key, V value) {
+		Segment<K, V> segment = segment(key);
+		synchronized (segment) {
+			segment.put(key, value);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	public long evictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		long lookups = hits() + misses();
+		return String.format("%d hits, %d misses (%.1f%% hit rate), %d evictions, %d/%d entries",
+				hits(), misses(), lookups == 0 ? 0.0 : 100.0 * hits() / lookups, evictions(), size(),
+				capacity);
+	}
+
+	// An access-ordered map that drops its eldest entry when full. It is
+	// Serializable only because LinkedHashMap is; a cache is never serialized.
+	private static class Segment<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+		private final AtomicLong evictions;
+
+		Segment(int capacity, AtomicLong evictions) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+			this.evictions = evictions;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			if (size() > capacity) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package edu.stanford.cs276.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * LongIntMap table read in place from a model file section written by
+ * LongIntMap.write. The section layout is:
+ *
+ *   int size, int tableSize, int hasZeroKey, int zeroValue
+ *   long[tableSize] keys, 0 for a free slot
+ *   int[tableSize]  values
+ */
+public class MappedLongIntMap implements LongIntLookup {
+
+	private final int size;
+	private final int mask;
+	private final boolean hasZeroKey;
+	private final int zeroValue;
+	private final LongBuffer keys;
+	private final IntBuffer values;
+
+	public MappedLongIntMap(ByteBuffer section) {
+		ByteBuffer buf = section.duplicate();
+		size = buf.getInt();
+		int tableSize = buf.getInt();
+		hasZeroKey = buf.getInt() != 0;
+		zeroValue = buf.getInt();
+		mask = tableSize - 1;
+		keys = ModelFile.slice(buf, 8 * tableSize).asLongBuffer();
+		values = ModelFile.slice(buf, 4 * tableSize).asIntBuffer();
+	}
+
+	/**
+	 * Writes the section for the entries of a merged run to file, building the
+	 * table in the mapped file rather than on the heap, and maps it. The entries
+	 * come in ascending key order, so the section is the one LongIntMap.write gives
+	 * for a LongIntMap(size) they were added to in that order.
+	 */
+	public static MappedLongIntMap build(LongIntRuns.Cursor entries, long size, File file)
+			throws IOException {
+		long tableSize = LongIntMap.capacityFor(size);
+		long length = 16 + 12 * tableSize;
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException(size + " keys are too many for one section");
+		}
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		MappedByteBuffer buf;
+		try {
+			out.setLength(0);
+			out.setLength(length);
+			buf = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		} finally {
+			out.close();
+		}
+		int mask = (int) tableSize - 1;
+		LongBuffer keys = slice(buf, 16, 8 * tableSize).asLongBuffer();
+		IntBuffer values = slice(buf, 16 + 8 * tableSize, 4 * tableSize).asIntBuffer();
+		int count = 0;
+		boolean hasZeroKey = false;
+		int zeroValue = 0;
+		while (entries.next()) {
+			count++;
+			if (entries.key() == 0) {
+				hasZeroKey = true;
+				zeroValue = entries.count();
+				continue;
+			}
+			int slot = LongIntMap.hash(entries.key()) & mask;
+			while (keys.get(slot) != 0) {
+				slot = (slot + 1) & mask;
+			}
+			keys.put(slot, entries.key());
+			values.put(slot, entries.count());
+		}
+		buf.putInt(0, count);
+		buf.putInt(4, (int) tableSize);
+		buf.putInt(8, hasZeroKey ? 1 : 0);
+		buf.putInt(12, zeroValue);
+		buf.force();
+		return new MappedLongIntMap(buf);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buf, long offset, long length) {
+		ByteBuffer slice = buf.duplicate();
+		slice.position((int) offset);
+		slice.limit((int) (offset + length));
+		return slice.slice();
+	}
+
+	@Override
+	public long keyAt(int slot) {
+		return slot > mask ? 0 : keys.get(slot);
+	}
+
+	@Override
+	public int valueAt(int slot) {
+		return slot > mask ? zeroValue : values.get(slot);
+	}
+
+	@Override
+	public int get(long key) {
+		if (key == 0) {
+			return zeroValue;
+		}
+		int slot = LongIntMap.hash(key) & mask;
+		while (true) {
+			long k = keys.get(slot);
+			if (k == key) {
+				return values.get(slot);
+			}
+			if (k == 0) {
+				return 0;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	@Override
+	public int slotOf(long key) {
+		if (key == 0) {
+			return hasZeroKey ? mask + 1 : -1;
+		}
+		int slot = LongIntMap.hash(key) & mask;
+		while (true) {
+			long k = keys.get(slot);
+			if (k == key) {
+				return slot;
+			}
+			if (k == 0) {
+				return -1;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	@Override
+	public int tableSize() {
+		return mask + 1;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public long[] sortedKeys() {
+		long[] result = new long[size];
+		int n = 0;
+		if (hasZeroKey) {
+			result[n++] = 0;
+		}
+		for (int slot = 0; slot <= mask; slot++) {
+			long key = keys.get(slot);
+			if (key != 0) {
+				result[n++] = key;
+			}
+		}
+		Arrays.sort(result);
+		return result;
+	}
+}
@@ -0,0 +1,188 @@
+package edu.stanford.cs276.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Vocabulary read in place from a model file section. Terms are stored sorted, so
+ * ids follow term order. The section layout is:
+ *
+ *   int size, int termCount, int tableSize, int charCount
+ *   int[size]      counts
+ *   int[size]      term hashes (String.hashCode)
+ *   int[size + 1]  offsets of each term into the char data
+ *   int[tableSize] open-addressing table of ids, -1 for a free slot
+ *   char[charCount] term characters
+ */
+public class MappedVocabulary implements Vocabulary {
+
+	private final int size;
+	private final int termCount;
+	private final int mask;
+	private final IntBuffer counts;
+	private final IntBuffer hashes;
+	private final IntBuffer offsets;
+	private final IntBuffer table;
+	private final CharBuffer chars;
+
+	public MappedVocabulary(ByteBuffer section) {
+		ByteBuffer buf = section.duplicate();
+		size = buf.getInt();
+		termCount = buf.getInt();
+		int tableSize = buf.getInt();
+		int charCount = buf.getInt();
+		mask = tableSize - 1;
+		counts = ModelFile.slice(buf, 4 * size).asIntBuffer();
+		hashes = ModelFile.slice(buf, 4 * size).asIntBuffer();
+		offsets = ModelFile.slice(buf, 4 * (size + 1)).asIntBuffer();
+		table = ModelFile.slice(buf, 4 * tableSize).asIntBuffer();
+		chars = ModelFile.slice(buf, 2 * charCount).asCharBuffer();
+	}
+
+	@Override
+	public int id(CharSequence s, int start, int end) {
+		int h = Dictionary.hash(s, start, end);
+		int slot = Dictionary.mix(h) & mask;
+		while (true) {
+			int id = table.get(slot);
+			if (id < 0 || (hashes.get(id) == h && matches(id, s, start, end))) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean matches(int id, CharSequence s, int start, int end) {
+		int from = offsets.get(id);
+		int len = offsets.get(id + 1) - from;
+		if (len != end - start) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (chars.get(from + i) != s.charAt(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int count(int id) {
+		return id < 0 ? 0 : counts.get(id);
+	}
+
+	@Override
+	public int count(String term) {
+		return count(id(term, 0, term.length()));
+	}
+
+	@Override
+	public String term(int id) {
+		int from = offsets.get(id);
+		char[] term = new char[offsets.get(id + 1) - from];
+		for (int i = 0; i < term.length; i++) {
+			term[i] = chars.get(from + i);
+		}
+		return new String(term);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int termCount() {
+		return termCount;
+	}
+
+	/**
+	 * Returns the ids the terms of vocab get in the sorted section write() gives,
+	 * by their ids in vocab.
+	 */
+	public static int[] sortedIds(Vocabulary vocab) {
+		int size = vocab.size();
+		final String[] terms = new String[size];
+		Integer[] order = new Integer[size];
+		for (int id = 0; id < size; id++) {
+			terms[id] = vocab.term(id);
+			order[id] = id;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return terms[a].compareTo(terms[b]);
+			}
+		});
+		int[] remap = new int[size];
+		for (int newId = 0; newId < size; newId++) {
+			remap[order[newId]] = newId;
+		}
+		return remap;
+	}
+
+	/**
+	 * Writes the vocabulary as a section in the layout above. Terms are sorted, so
+	 * they get new ids; the returned array maps each old id to its new one.
+	 */
+	public static int[] write(Vocabulary vocab, DataOutputStream out) throws IOException {
+		int size = vocab.size();
+		String[] terms = new String[size];
+		long charCount = 0;
+		for (int id = 0; id < size; id++) {
+			terms[id] = vocab.term(id);
+			charCount += terms[id].length();
+		}
+		if (charCount > Integer.MAX_VALUE / 2) {
+			throw new IOException("Vocabulary too large for one section");
+		}
+		int[] remap = sortedIds(vocab);
+		int[] order = new int[size];
+		for (int id = 0; id < size; id++) {
+			order[remap[id]] = id;
+		}
+
+		int tableSize = 16;
+		while (tableSize < 2 * size) {
+			tableSize <<= 1;
+		}
+		int[] table = new int[tableSize];
+		Arrays.fill(table, -1);
+		for (int newId = 0; newId < size; newId++) {
+			int slot = Dictionary.mix(terms[order[newId]].hashCode()) & (tableSize - 1);
+			while (table[slot] >= 0) {
+				slot = (slot + 1) & (tableSize - 1);
+			}
+			table[slot] = newId;
+		}
+
+		out.writeInt(size);
+		out.writeInt(vocab.termCount());
+		out.writeInt(tableSize);
+		out.writeInt((int) charCount);
+		for (int newId = 0; newId < size; newId++) {
+			out.writeInt(vocab.count(order[newId]));
+		}
+		for (int newId = 0; newId < size; newId++) {
+			out.writeInt(terms[order[newId]].hashCode());
+		}
+		int offset = 0;
+		for (int newId = 0; newId < size; newId++) {
+			out.writeInt(offset);
+			offset += terms[order[newId]].length();
+		}
+		out.writeInt(offset);
+		for (int slot : table) {
+			out.writeInt(slot);
+		}
+		for (int newId = 0; newId < size; newId++) {
+			out.writeChars(terms[order[newId]]);
+		}
+		return remap;
+	}
+}
@@ -0,0 +1,330 @@
+package edu.stanford.cs276.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Versioned binary container for the saved models. A file is a fixed header
+ * followed by a list of sections, each of which can be memory-mapped and read in
+ * place:
+ *
+ *   long  magic ("CS276MDL")
+ *   int   version
+ *   int   kind            (LANGUAGE_MODEL, NOISY_CHANNEL, ...)
+ *   int   sectionCount
+ *   int   reserved
+ *   long  CRC32 of every byte after the header
+ *   sectionCount x (long offset, long length)
+ *   section data, each section starting on an 8 byte boundary
+ *
+ * All numbers are big-endian. A single section is limited to 2 GB, the most a
+ * MappedByteBuffer can address.
+ */
+public class ModelFile {
+
+	public static final long MAGIC = 0x43533237364d444cL;
+	public static final int VERSION = 1;
+
+	public static final int LANGUAGE_MODEL = 1;
+	public static final int NOISY_CHANNEL = 2;
+	public static final int CANDIDATE_INDEX = 3;
+
+	private static final int FIXED_HEADER = 32;
+
+	private final String path;
+	private final int version;
+	private final long checksum;
+	private final long[] offsets;
+	private final long[] lengths;
+	private final ByteBuffer[] sections;
+
+	private ModelFile(String path, int version, long checksum, long[] offsets, long[] lengths,
+			ByteBuffer[] sections) {
+		this.path = path;
+		this.version = version;
+		this.checksum = checksum;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.sections = sections;
+	}
+
+	/**
+	 * Returns true if the file starts with the model file magic number.
+	 */
+	public static boolean isModelFile(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(path));
+		try {
+			return in.readLong() == MAGIC;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Opens a model file and maps all of its sections read-only. The header is
+	 * validated; the body checksum is only checked by verify().
+	 */
+	public static ModelFile open(String path, int kind) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			long fileLength = file.length();
+			if (fileLength < FIXED_HEADER || file.readLong() != MAGIC) {
+				throw new IOException(path + " is not a model file");
+			}
+			int version = file.readInt();
+			if (version != VERSION) {
+				throw new IOException(path + " has format version " + version + ", expected " + VERSION);
+			}
+			int fileKind = file.readInt();
+			if (fileKind != kind) {
+				throw new IOException(path + " holds model kind " + fileKind + ", expected " + kind);
+			}
+			int sectionCount = file.readInt();
+			file.readInt();
+			long checksum = file.readLong();
+			if (sectionCount < 0 || FIXED_HEADER + 16L * sectionCount > fileLength) {
+				throw new IOException(path + " has a corrupt header");
+			}
+			long[] offsets = new long[sectionCount];
+			long[] lengths = new long[sectionCount];
+			ByteBuffer[] sections = new ByteBuffer[sectionCount];
+			FileChannel channel = file.getChannel();
+			for (int i = 0; i < sectionCount; i++) {
+				offsets[i] = file.readLong();
+				lengths[i] = file.readLong();
+				if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > fileLength
+						|| lengths[i] > Integer.MAX_VALUE) {
+					throw new IOException(path + " has a corrupt section table");
+				}
+			}
+			for (int i = 0; i < sectionCount; i++) {
+				sections[i] = channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], lengths[i]);
+			}
+			return new ModelFile(path, version, checksum, offsets, lengths, sections);
+		} finally {
+			// The mappings stay valid after the channel is closed.
+			file.close();
+		}
+	}
+
+	public int version() {
+		return version;
+	}
+
+	public int sectionCount() {
+		return sections.length;
+	}
+
+	/**
+	 * Returns a new read-only view of section i, positioned at its start.
+	 */
+	public ByteBuffer section(int i) {
+		return sections[i].duplicate();
+	}
+
+	/**
+	 * Takes the next bytes of a section as a separate buffer and advances past them.
+	 */
+	public static ByteBuffer slice(ByteBuffer buf, int bytes) {
+		ByteBuffer slice = buf.slice();
+		slice.limit(bytes);
+		buf.position(buf.position() + bytes);
+		return slice;
+	}
+
+	/**
+	 * CRC32 of the bytes of a section from its position to its limit, which are left
+	 * as they are.
+	 */
+	public static long checksum(ByteBuffer section) {
+		ByteBuffer buf = section.duplicate();
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[1 << 16];
+		while (buf.hasRemaining()) {
+			int n = Math.min(buffer.length, buf.remaining());
+			buf.get(buffer, 0, n);
+			crc.update(buffer, 0, n);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Reads the whole body and compares its CRC32 with the one in the header.
+	 */
+	public boolean verify() throws IOException {
+		long bodyStart = headerLength(sections.length);
+		CRC32 crc = new CRC32();
+		FileInputStream in = new FileInputStream(path);
+		try {
+			long skipped = 0;
+			while (skipped < bodyStart) {
+				skipped += in.skip(bodyStart - skipped);
+			}
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue() == checksum;
+	}
+
+	private static long headerLength(int sectionCount) {
+		return align(FIXED_HEADER + 16L * sectionCount);
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	/**
+	 * Writes a model file one section at a time. Call beginSection() before writing
+	 * each section's data to the returned stream, then close() to fill in the header.
+	 * The file is written next to path and only renamed to it by close(), so a
+	 * process that has the old file mapped keeps reading it unchanged, and a failed
+	 * write leaves the old file in place. Callers call abort() in a finally block, so
+	 * that the temp file is closed and deleted if writing fails before close().
+	 */
+	public static class Writer {
+		private final File target;
+		private final File temp;
+		private final RandomAccessFile file;
+		private final int kind;
+		private final long[] offsets;
+		private final long[] lengths;
+		private final CRC32 crc = new CRC32();
+		private final CountingStream counter;
+		private final DataOutputStream out;
+		private int current = -1;
+		private boolean finished;
+
+		public Writer(String path, int kind, int sectionCount) throws IOException {
+			this.target = new File(path).getAbsoluteFile();
+			this.temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+			try {
+				this.file = new RandomAccessFile(temp, "rw");
+			} catch (IOException e) {
+				temp.delete();
+				throw e;
+			}
+			this.kind = kind;
+			this.offsets = new long[sectionCount];
+			this.lengths = new long[sectionCount];
+			long bodyStart = headerLength(sectionCount);
+			file.seek(bodyStart);
+			counter = new CountingStream(new FileOutputStream(file.getFD()), crc, bodyStart);
+			out = new DataOutputStream(new BufferedOutputStream(counter, 1 << 16));
+		}
+
+		public DataOutputStream beginSection() throws IOException {
+			endSection();
+			current++;
+			out.flush();
+			while (counter.position % 8 != 0) {
+				out.write(0);
+				out.flush();
+			}
+			offsets[current] = counter.position;
+			return out;
+		}
+
+		private void endSection() throws IOException {
+			if (current >= 0) {
+				out.flush();
+				lengths[current] = counter.position - offsets[current];
+			}
+		}
+
+		public void close() throws IOException {
+			try {
+				endSection();
+				if (current != offsets.length - 1) {
+					throw new IOException("Expected " + offsets.length + " sections but "
+							+ (current + 1) + " were written");
+				}
+				file.seek(0);
+				file.writeLong(MAGIC);
+				file.writeInt(VERSION);
+				file.writeInt(kind);
+				file.writeInt(offsets.length);
+				file.writeInt(0);
+				file.writeLong(crc.getValue());
+				for (int i = 0; i < offsets.length; i++) {
+					file.writeLong(offsets[i]);
+					file.writeLong(lengths[i]);
+				}
+				file.close();
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				finished = true;
+			} finally {
+				abort();
+			}
+		}
+
+		/**
+		 * Closes and deletes the temp file unless close() has renamed it into place,
+		 * leaving the old file at path as it was. Does nothing after close() succeeds.
+		 */
+		public void abort() {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			try {
+				file.close();
+			} catch (IOException e) {
+				// Nothing was renamed, and the file is deleted below either way
+			}
+			temp.delete();
+		}
+	}
+
+	// Tracks the file position and checksum of everything written to the body
+	private static class CountingStream extends OutputStream {
+		private final OutputStream out;
+		private final CRC32 crc;
+		long position;
+
+		CountingStream(OutputStream out, CRC32 crc, long position) {
+			this.out = out;
+			this.crc = crc;
+			this.position = position;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			crc.update(b);
+			position++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			crc.update(b, off, len);
+			position += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+	}
+}
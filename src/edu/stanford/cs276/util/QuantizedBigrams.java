@@ -0,0 +1,161 @@
+package edu.stanford.cs276.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Read-only table of bigram log probabilities read in place from a model file
+ * section, in place of a bigram count table and its per-slot log probabilities.
+ * Bigrams are stored sorted by (w1 id, w2 id): an offset per w1 gives the row of
+ * its bigrams, which is binary searched for w2. Each log probability is rounded to
+ * one of 2^bits evenly spaced levels between the smallest and largest stored, so
+ * the value read back is within maxError() = (max - min) / (2^bits - 1) / 2 of the
+ * exact one. There are no counts, so a model saved this way cannot be updated. The
+ * section layout is:
+ *
+ *   int FORMAT (-1, where a LongIntMap section has its size), int bits (8 or 16),
+ *   int words V, int size N, double min, double step
+ *   int[V + 1]        offset of each w1's row
+ *   int[N]            w2 ids, ascending within a row
+ *   byte[N] or short[N] level q of each log probability, min + q * step
+ */
+public class QuantizedBigrams {
+
+	public static final int FORMAT = -1;
+
+	private final int bits;
+	private final int words;
+	private final int size;
+	private final double min;
+	private final double step;
+	private final IntBuffer offsets;
+	private final IntBuffer w2;
+	private final ByteBuffer bytes;
+	private final ShortBuffer shorts;
+
+	public QuantizedBigrams(ByteBuffer section) {
+		ByteBuffer buf = section.duplicate();
+		if (buf.getInt() != FORMAT) {
+			throw new IllegalArgumentException("Not a quantized bigram section");
+		}
+		bits = buf.getInt();
+		words = buf.getInt();
+		size = buf.getInt();
+		min = buf.getDouble();
+		step = buf.getDouble();
+		offsets = ModelFile.slice(buf, 4 * (words + 1)).asIntBuffer();
+		w2 = ModelFile.slice(buf, 4 * size).asIntBuffer();
+		if (bits == 8) {
+			bytes = ModelFile.slice(buf, size);
+			shorts = null;
+		} else {
+			bytes = null;
+			shorts = ModelFile.slice(buf, 2 * size).asShortBuffer();
+		}
+	}
+
+	/**
+	 * Returns true if the section was written by write(), false if it is a
+	 * LongIntMap section.
+	 */
+	public static boolean isQuantized(ByteBuffer section) {
+		return section.getInt(section.position()) == FORMAT;
+	}
+
+	/**
+	 * Returns the index of the bigram, or -1 if it is absent.
+	 */
+	public int indexOf(int id1, int id2) {
+		if (id1 < 0 || id1 >= words) {
+			return -1;
+		}
+		int low = offsets.get(id1);
+		int high = offsets.get(id1 + 1) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int id = w2.get(mid);
+			if (id < id2) {
+				low = mid + 1;
+			} else if (id > id2) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The log probability of the bigram at an index, within maxError() of the one
+	 * written.
+	 */
+	public double logProbability(int index) {
+		int level = bytes != null ? bytes.get(index) & 0xff : shorts.get(index) & 0xffff;
+		return min + level * step;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int bits() {
+		return bits;
+	}
+
+	public double maxError() {
+		return step / 2;
+	}
+
+	/**
+	 * Writes the section for bigrams given as keys packed as by
+	 * LanguageModel.bigramKey, in ascending order, with their log probabilities.
+	 * Word ids must be below words; bits is 8 or 16. Returns the maxError() of the
+	 * table written.
+	 */
+	public static double write(long[] keys, double[] logProbabilities, int words, int bits,
+			DataOutputStream out) throws IOException {
+		if (bits != 8 && bits != 16) {
+			throw new IllegalArgumentException("Bigrams quantize to 8 or 16 bits, not " + bits);
+		}
+		double min = 0;
+		double max = 0;
+		if (keys.length > 0) {
+			min = max = logProbabilities[0];
+		}
+		for (double p : logProbabilities) {
+			min = Math.min(min, p);
+			max = Math.max(max, p);
+		}
+		int levels = (1 << bits) - 1;
+		double step = max > min ? (max - min) / levels : 0;
+
+		out.writeInt(FORMAT);
+		out.writeInt(bits);
+		out.writeInt(words);
+		out.writeInt(keys.length);
+		out.writeDouble(min);
+		out.writeDouble(step);
+		int i = 0;
+		for (int id1 = 0; id1 <= words; id1++) {
+			while (i < keys.length && (int) (keys[i] >>> 32) < id1) {
+				i++;
+			}
+			out.writeInt(i);
+		}
+		for (long key : keys) {
+			out.writeInt((int) key);
+		}
+		for (double p : logProbabilities) {
+			int level = step > 0 ? (int) Math.round((p - min) / step) : 0;
+			if (bits == 8) {
+				out.writeByte(level);
+			} else {
+				out.writeShort(level);
+			}
+		}
+		return step / 2;
+	}
+}
@@ -0,0 +1,225 @@
+package edu.stanford.cs276.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Read-only table of trigram counts read in place from a model file section.
+ * Trigrams are stored sorted by (w1, w2, w3) id and grouped by their context
+ * (w1, w2): an offset per w1 gives the row of its contexts, binary searched for w2,
+ * and each context gives the row of its trigrams, binary searched for w3. Words are
+ * the ids of the model's vocabulary, so no term is stored again. A context also
+ * holds how often w1 w2 was followed by any word, counted before rare trigrams
+ * were dropped, which is the denominator of P(w3 | w1 w2). The section layout is:
+ *
+ *   int FORMAT (-1, where an IngestedInputs section has its own FORMAT or its
+ *   count), int words V, int contexts C, int size N
+ *   int[V + 1]             offset of each w1's contexts
+ *   C x (int w2, int total, int offset of its trigrams), w2 ascending within a row
+ *   N x (int w3, int count), w3 ascending within a row
+ */
+public class TrigramTable {
+
+	public static final int FORMAT = -1;
+	// Bits of each word id in a key, so keys hold the ids of at most MAX_WORDS words
+	private static final int ID_BITS = 21;
+	public static final int MAX_WORDS = 1 << ID_BITS;
+	private static final int ID_MASK = MAX_WORDS - 1;
+
+	private final int words;
+	private final int contexts;
+	private final int size;
+	private final IntBuffer offsets;
+	private final IntBuffer contextRows;
+	private final IntBuffer trigramRows;
+
+	public TrigramTable(ByteBuffer section) {
+		ByteBuffer buf = section.duplicate();
+		if (buf.getInt() != FORMAT) {
+			throw new IllegalArgumentException("Not a trigram section");
+		}
+		words = buf.getInt();
+		contexts = buf.getInt();
+		size = buf.getInt();
+		offsets = ModelFile.slice(buf, 4 * (words + 1)).asIntBuffer();
+		contextRows = ModelFile.slice(buf, 12 * contexts).asIntBuffer();
+		trigramRows = ModelFile.slice(buf, 8 * size).asIntBuffer();
+	}
+
+	/**
+	 * Returns true if the section was written by write(), false if it is an
+	 * IngestedInputs section.
+	 */
+	public static boolean isTrigrams(ByteBuffer section) {
+		return section.getInt(section.position()) == FORMAT;
+	}
+
+	/**
+	 * Packs three word ids, each below MAX_WORDS, into a key that sorts as (w1, w2,
+	 * w3).
+	 */
+	public static long key(int id1, int id2, int id3) {
+		return ((long) id1 << 2 * ID_BITS) | ((long) id2 << ID_BITS) | id3;
+	}
+
+	/**
+	 * Returns the index of the context (w1, w2), or -1 if no trigram starts with it.
+	 */
+	public int contextOf(int id1, int id2) {
+		if (id1 < 0 || id1 >= words) {
+			return -1;
+		}
+		int low = offsets.get(id1);
+		int high = offsets.get(id1 + 1) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int id = contextRows.get(3 * mid);
+			if (id < id2) {
+				low = mid + 1;
+			} else if (id > id2) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the trigram (w1, w2, w3) given the index of its context,
+	 * or -1 if it is absent.
+	 */
+	public int indexOf(int context, int id3) {
+		int low = contextRows.get(3 * context + 2);
+		int high = (context + 1 < contexts ? contextRows.get(3 * context + 5) : size) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int id = trigramRows.get(2 * mid);
+			if (id < id3) {
+				low = mid + 1;
+			} else if (id > id3) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * How often the words of a context were followed by any word.
+	 */
+	public int contextCount(int context) {
+		return contextRows.get(3 * context + 1);
+	}
+
+	public int count(int index) {
+		return trigramRows.get(2 * index + 1);
+	}
+
+	public int contexts() {
+		return contexts;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Writes the section for the trigrams merged into one run of runs, keyed as by
+	 * key(). Trigrams seen fewer than minCount times are left out, but still count
+	 * towards the total of their context. The run is read three times, once for each
+	 * part of the layout, so the table never has to fit in memory. Returns the
+	 * number of trigrams written.
+	 */
+	public static int write(LongIntRuns runs, int words, int minCount, DataOutputStream out)
+			throws IOException {
+		// First the number of contexts kept for each w1
+		int[] offsets = new int[words + 1];
+		int contexts = 0;
+		int size = 0;
+		LongIntRuns.Cursor entries = runs.cursor();
+		try {
+			long context = -1;
+			boolean kept = false;
+			while (entries.next()) {
+				long key = entries.key();
+				if (key >>> ID_BITS != context) {
+					context = key >>> ID_BITS;
+					kept = false;
+				}
+				if (entries.count() >= minCount) {
+					if (!kept) {
+						offsets[(int) (key >>> 2 * ID_BITS) + 1]++;
+						contexts++;
+						kept = true;
+					}
+					size++;
+				}
+			}
+		} finally {
+			entries.close();
+		}
+		for (int id = 0; id < words; id++) {
+			offsets[id + 1] += offsets[id];
+		}
+		out.writeInt(FORMAT);
+		out.writeInt(words);
+		out.writeInt(contexts);
+		out.writeInt(size);
+		for (int offset : offsets) {
+			out.writeInt(offset);
+		}
+
+		// Then a record per context, written once its total is known
+		entries = runs.cursor();
+		try {
+			long context = -1;
+			int total = 0;
+			int first = 0;
+			int next = 0;
+			while (entries.next()) {
+				long key = entries.key();
+				if (key >>> ID_BITS != context) {
+					writeContext(context, total, first, next, out);
+					context = key >>> ID_BITS;
+					total = 0;
+					first = next;
+				}
+				total += entries.count();
+				if (entries.count() >= minCount) {
+					next++;
+				}
+			}
+			writeContext(context, total, first, next, out);
+		} finally {
+			entries.close();
+		}
+
+		// And last the trigrams themselves
+		entries = runs.cursor();
+		try {
+			while (entries.next()) {
+				if (entries.count() >= minCount) {
+					out.writeInt((int) entries.key() & ID_MASK);
+					out.writeInt(entries.count());
+				}
+			}
+		} finally {
+			entries.close();
+		}
+		return size;
+	}
+
+	// Writes the record of a context whose kept trigrams are [first, next), if any
+	private static void writeContext(long context, int total, int first, int next,
+			DataOutputStream out) throws IOException {
+		if (next > first) {
+			out.writeInt((int) context & ID_MASK);
+			out.writeInt(total);
+			out.writeInt(first);
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package edu.stanford.cs276.util;
+
+/**
+ * Read access to a set of terms with counts, where every term has a dense int id
+ * in [0, size()).
+ */
+public interface Vocabulary {
+
+	/**
+	 * Returns the id of the term s[start, end), or -1 if it is not present.
+	 */
+	public int id(CharSequence s, int start, int end);
+
+	/**
+	 * Returns the count of the term with the given id, or 0 for an id of -1.
+	 */
+	public int count(int id);
+
+	public int count(String term);
+
+	public String term(int id);
+
+	public int size();
+
+	public int termCount();
+}